@@ -0,0 +1,185 @@
+/*
+ * Copyright 2016 Polarion AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.polarion.alm.extensions.codereview;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Synthetic pairs of file revisions used by {@link DiffBenchmark}. All corpora are generated from fixed seeds, so every
+ * run compares the same texts.
+ */
+@SuppressWarnings("nls")
+enum BenchmarkCorpus {
+
+    /**
+     * A source file of 2000 lines with a few changed, added and removed lines.
+     */
+    SMALL_EDITS {
+        @Override
+        void generate(@NotNull Random random, @NotNull List<String> first, @NotNull List<String> second) {
+            List<String> lines = sourceLines(random, 2000);
+            first.addAll(lines);
+            second.addAll(lines);
+            for (int i = 0; i < 20; i++) {
+                int line = random.nextInt(second.size());
+                switch (i % 3) {
+                case 0:
+                    second.set(line, second.get(line).replace(';', ',') + " // changed");
+                    break;
+                case 1:
+                    second.add(line, sourceLine(random, line));
+                    break;
+                default:
+                    second.remove(line);
+                    break;
+                }
+            }
+        }
+    },
+
+    /**
+     * A source file of 5000 lines whose methods were reordered, renamed and reindented.
+     */
+    LARGE_REFACTOR {
+        @Override
+        void generate(@NotNull Random random, @NotNull List<String> first, @NotNull List<String> second) {
+            List<List<String>> methods = new ArrayList<>();
+            for (int i = 0; i < 250; i++) {
+                methods.add(sourceLines(random, 20));
+            }
+            for (List<String> method : methods) {
+                first.addAll(method);
+            }
+            Collections.shuffle(methods, random);
+            for (List<String> method : methods) {
+                for (String line : method) {
+                    String changed = random.nextInt(4) == 0 ? line.replace("value", "result") : line;
+                    second.add("\t" + changed.trim());
+                }
+            }
+        }
+    },
+
+    /**
+     * A generated XML resource of 100000 lines with scattered changes.
+     */
+    HUGE_GENERATED {
+        @Override
+        void generate(@NotNull Random random, @NotNull List<String> first, @NotNull List<String> second) {
+            for (int i = 0; i < 100000; i++) {
+                String line = "  <entry id=\"" + i + "\" state=\"" + random.nextInt(5) + "\">value " + random.nextInt(100)
+                        + "</entry>";
+                first.add(line);
+                second.add(random.nextInt(200) == 0 ? line.replace("state", "status") : line);
+            }
+        }
+    },
+
+    /**
+     * A source file of 2000 lines with Windows line ends compared to a revision with Unix line ends and a few edits.
+     */
+    CRLF_LF_MIX {
+        @Override
+        void generate(@NotNull Random random, @NotNull List<String> first, @NotNull List<String> second) {
+            for (String line : sourceLines(random, 2000)) {
+                first.add(line + "\r");
+                second.add(random.nextInt(100) == 0 ? line + " // changed" : line);
+            }
+        }
+    },
+
+    /**
+     * 20000 distinct lines against a revision in which every tenth line changed.
+     */
+    UNIQUE_LINES {
+        @Override
+        void generate(@NotNull Random random, @NotNull List<String> first, @NotNull List<String> second) {
+            for (int i = 0; i < 20000; i++) {
+                String line = "line " + i + " " + Long.toHexString(random.nextLong());
+                first.add(line);
+                second.add(i % 10 == 0 ? line + " changed" : line);
+            }
+        }
+    };
+
+    private static final String[] WORDS = { "value", "index", "count", "result", "name", "item", "list", "map", "size",
+            "builder" };
+
+    private String text1;
+    private String text2;
+
+    abstract void generate(@NotNull Random random, @NotNull List<String> first, @NotNull List<String> second);
+
+    @NotNull
+    String getText1() {
+        init();
+        return text1;
+    }
+
+    @NotNull
+    String getText2() {
+        init();
+        return text2;
+    }
+
+    private synchronized void init() {
+        if (text1 == null) {
+            List<String> first = new ArrayList<>();
+            List<String> second = new ArrayList<>();
+            generate(new Random(ordinal() + 1), first, second);
+            text1 = join(first);
+            text2 = join(second);
+        }
+    }
+
+    @NotNull
+    private static String join(@NotNull List<String> lines) {
+        StringBuilder text = new StringBuilder();
+        for (String line : lines) {
+            text.append(line).append('\n');
+        }
+        return text.toString();
+    }
+
+    @NotNull
+    static List<String> sourceLines(@NotNull Random random, int count) {
+        List<String> lines = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            lines.add(sourceLine(random, i));
+        }
+        return lines;
+    }
+
+    @NotNull
+    static String sourceLine(@NotNull Random random, int number) {
+        switch (random.nextInt(6)) {
+        case 0:
+            return "";
+        case 1:
+            return "    }";
+        default:
+            String word = WORDS[random.nextInt(WORDS.length)];
+            return "        " + word + number + " = " + WORDS[random.nextInt(WORDS.length)] + ".get(" + word + ", "
+                    + random.nextInt(1000) + ");";
+        }
+    }
+
+}
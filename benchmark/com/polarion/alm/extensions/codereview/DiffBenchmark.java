@@ -0,0 +1,194 @@
+/*
+ * Copyright 2016 Polarion AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.polarion.alm.extensions.codereview;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import org.jetbrains.annotations.NotNull;
+
+import com.polarion.alm.extensions.codereview.TextDiffMatchPatch.Diff;
+import com.polarion.alm.extensions.codereview.TextDiffMatchPatch.LineDiffAlgorithm;
+import com.polarion.alm.extensions.codereview.TextDiffMatchPatch.LineWhitespace;
+
+/**
+ * Throughput and allocation rate of the diff engine on the {@link BenchmarkCorpus synthetic corpora}. Each operation is
+ * run repeatedly for a warmup period and then measured for a fixed period on the current thread.
+ * <p>
+ * Usage: {@code java -cp <plugin classes>:<benchmark classes> com.polarion.alm.extensions.codereview.DiffBenchmark
+ * [filter...]}, only the benchmarks whose name ({@code operation/corpus}) contains one of the filters are run. The
+ * periods are set in seconds by {@code -Dbenchmark.warmup} (default 2) and {@code -Dbenchmark.time} (default 5).
+ * Allocations of the common fork/join pool are not counted, run with {@code -Dcodereview.diffForkThreshold=0} to keep
+ * the numbers comparable.
+ */
+@SuppressWarnings("nls")
+public final class DiffBenchmark {
+
+    private static final long WARMUP_NANOS = TimeUnit.SECONDS.toNanos(Long.getLong("benchmark.warmup", 2));
+    private static final long MEASUREMENT_NANOS = TimeUnit.SECONDS.toNanos(Long.getLong("benchmark.time", 5));
+
+    private enum Operation {
+
+        LINE_DIFF {
+            @Override
+            Object run(@NotNull TextDiffMatchPatch dmp, @NotNull BenchmarkCorpus corpus, int iteration) {
+                return dmp.diffMainAtLineLevel(corpus.getText1(), corpus.getText2());
+            }
+        },
+
+        WORD_DIFF {
+            @Override
+            Object run(@NotNull TextDiffMatchPatch dmp, @NotNull BenchmarkCorpus corpus, int iteration) {
+                return dmp.diffMainAtWordLevel(corpus.getText1(), corpus.getText2());
+            }
+        },
+
+        CLEANUP_SEMANTIC {
+            @Override
+            Object run(@NotNull TextDiffMatchPatch dmp, @NotNull BenchmarkCorpus corpus, int iteration) {
+                List<Diff> diffs = copy(wordDiffs(dmp, corpus));
+                dmp.diffCleanupSemantic(diffs);
+                return diffs;
+            }
+        },
+
+        CLEANUP_EFFICIENCY {
+            @Override
+            Object run(@NotNull TextDiffMatchPatch dmp, @NotNull BenchmarkCorpus corpus, int iteration) {
+                List<Diff> diffs = copy(wordDiffs(dmp, corpus));
+                dmp.diffCleanupEfficiency(diffs);
+                return diffs;
+            }
+        },
+
+        MATCH {
+            @Override
+            Object run(@NotNull TextDiffMatchPatch dmp, @NotNull BenchmarkCorpus corpus, int iteration) {
+                // a slightly modified part of the second text searched near its position in the first one
+                String text1 = corpus.getText1();
+                String text2 = corpus.getText2();
+                int length = dmp.getMatchMaxBits();
+                int location = (int) ((iteration * 7919L) % Math.max(1, text2.length() - length));
+                String pattern = text2.substring(location, Math.min(text2.length(), location + length)).replace(' ', '_');
+                return dmp.matchMain(text1, pattern, location);
+            }
+        },
+
+        RENDER {
+            @Override
+            Object run(@NotNull TextDiffMatchPatch dmp, @NotNull BenchmarkCorpus corpus, int iteration) {
+                return FileCompareRenderer.compareFiles(corpus.getText1(), corpus.getText2(), LineDiffAlgorithm.MYERS,
+                        LineWhitespace.EXACT, DiffBudget.forRequest());
+            }
+        };
+
+        abstract Object run(@NotNull TextDiffMatchPatch dmp, @NotNull BenchmarkCorpus corpus, int iteration);
+
+    }
+
+    private static final List<Diff>[] WORD_DIFFS = newWordDiffs();
+
+    static volatile Object sink;
+
+    private DiffBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        System.out.println(String.format(Locale.ENGLISH, "%-36s %12s %12s %14s %12s", "Benchmark", "ops/s", "ms/op",
+                "bytes/op", "MB/s alloc"));
+        for (Operation operation : Operation.values()) {
+            for (BenchmarkCorpus corpus : BenchmarkCorpus.values()) {
+                String name = operation.name().toLowerCase(Locale.ENGLISH) + "/" + corpus.name().toLowerCase(Locale.ENGLISH);
+                if (!matches(name, args)) {
+                    continue;
+                }
+                TextDiffMatchPatch dmp = new TextDiffMatchPatch();
+                run(operation, corpus, dmp, WARMUP_NANOS);
+
+                long allocated = threads.getThreadAllocatedBytes(threadId);
+                long start = System.nanoTime();
+                int operations = run(operation, corpus, dmp, MEASUREMENT_NANOS);
+                long elapsed = System.nanoTime() - start;
+                allocated = threads.getThreadAllocatedBytes(threadId) - allocated;
+
+                double seconds = elapsed / 1e9;
+                System.out.println(String.format(Locale.ENGLISH, "%-36s %12.2f %12.3f %14d %12.1f", name,
+                        operations / seconds, elapsed / 1e6 / operations, allocated / operations,
+                        allocated / seconds / (1024 * 1024)));
+            }
+        }
+    }
+
+    private static int run(@NotNull Operation operation, @NotNull BenchmarkCorpus corpus, @NotNull TextDiffMatchPatch dmp, long nanos) {
+        long end = System.nanoTime() + nanos;
+        int operations = 0;
+        do {
+            // the result is published so that the work can't be skipped
+            sink = operation.run(dmp, corpus, operations);
+            operations++;
+        } while (System.nanoTime() < end);
+        return operations;
+    }
+
+    private static boolean matches(@NotNull String name, @NotNull String[] filters) {
+        if (filters.length == 0) {
+            return true;
+        }
+        for (String filter : filters) {
+            if (name.contains(filter.toLowerCase(Locale.ENGLISH))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return word diff of the corpus, the input of the cleanup benchmarks (computed once)
+     */
+    @NotNull
+    static synchronized List<Diff> wordDiffs(@NotNull TextDiffMatchPatch dmp, @NotNull BenchmarkCorpus corpus) {
+        List<Diff> diffs = WORD_DIFFS[corpus.ordinal()];
+        if (diffs == null) {
+            diffs = dmp.diffMainAtWordLevel(corpus.getText1(), corpus.getText2());
+            WORD_DIFFS[corpus.ordinal()] = diffs;
+        }
+        return diffs;
+    }
+
+    /**
+     * Copies the diffs, the cleanups modify them.
+     */
+    @NotNull
+    static List<Diff> copy(@NotNull List<Diff> diffs) {
+        List<Diff> copy = new LinkedList<>();
+        for (Diff diff : diffs) {
+            copy.add(new Diff(diff.getOperation(), diff.getText()));
+        }
+        return copy;
+    }
+
+    @SuppressWarnings("unchecked")
+    @NotNull
+    private static List<Diff>[] newWordDiffs() {
+        return new List[BenchmarkCorpus.values().length];
+    }
+
+}
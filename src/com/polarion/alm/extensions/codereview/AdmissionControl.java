@@ -0,0 +1,120 @@
+/*
+ * Copyright 2016 Polarion AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.polarion.alm.extensions.codereview;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Limits the renders which run at once by their estimated cost, on the whole node and for each user. The cost of a
+ * render is the number of files it compares. A render is always admitted when nothing else runs, so even a review
+ * exceeding the limits can be shown when the server is idle.
+ */
+@SuppressWarnings("nls")
+final class AdmissionControl {
+
+    private static final Logger logger = Logger.getLogger(AdmissionControl.class);
+
+    /**
+     * Total cost of the renders running at once on the node, 0 for no limit.
+     */
+    private static final long MAX_COST = Long.getLong("codereview.maxRenderCost", 2000);
+
+    /**
+     * Total cost of the renders of one user running at once, 0 for no limit.
+     */
+    private static final long MAX_USER_COST = Long.getLong("codereview.maxUserRenderCost", 500);
+
+    private static final AdmissionControl INSTANCE = new AdmissionControl(MAX_COST, MAX_USER_COST);
+
+    private final long maxCost;
+    private final long maxUserCost;
+    private long cost;
+    @NotNull
+    private final Map<String, Long> userCosts = new HashMap<>();
+
+    /**
+     * Admission of a render, it must be closed when the render is finished.
+     */
+    final class Ticket implements AutoCloseable {
+
+        @NotNull
+        private final String user;
+        private final long cost;
+        private boolean closed;
+
+        Ticket(@NotNull String user, long cost) {
+            this.user = user;
+            this.cost = cost;
+        }
+
+        @Override
+        public void close() {
+            synchronized (AdmissionControl.this) {
+                if (!closed) {
+                    closed = true;
+                    release(user, cost);
+                }
+            }
+        }
+
+    }
+
+    private AdmissionControl(long maxCost, long maxUserCost) {
+        this.maxCost = maxCost;
+        this.maxUserCost = maxUserCost;
+    }
+
+    @NotNull
+    static AdmissionControl getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param cost estimated cost of the render
+     * @return the admission of the render, {@code null} if it would exceed the limits of the node or of the user
+     */
+    @Nullable
+    synchronized Ticket tryAdmit(@NotNull String user, long cost) {
+        long userCost = userCosts.getOrDefault(user, 0L);
+        if (exceeds(this.cost, cost, maxCost) || exceeds(userCost, cost, maxUserCost)) {
+            logger.warn("Too many code reviews are being rendered, rejected a render of " + cost + " files for " + user);
+            return null;
+        }
+        this.cost += cost;
+        userCosts.put(user, userCost + cost);
+        return new Ticket(user, cost);
+    }
+
+    private static boolean exceeds(long current, long cost, long max) {
+        return max > 0 && current > 0 && current + cost > max;
+    }
+
+    private synchronized void release(@NotNull String user, long cost) {
+        this.cost -= cost;
+        long userCost = userCosts.getOrDefault(user, 0L) - cost;
+        if (userCost > 0) {
+            userCosts.put(user, userCost);
+        } else {
+            userCosts.remove(user);
+        }
+    }
+
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2016 Polarion AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.polarion.alm.extensions.codereview;
+
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Supplier;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Diff of two long sequences of token ids split into independent chunks. Tokens occurring exactly once in each sequence
+ * are matched with each other, the longest run of matches keeping their order in both sequences (as in patience diff)
+ * is used as anchors and the chunks between two anchors are diffed separately. The chunks are distributed over
+ * several groups which are diffed in parallel.
+ */
+final class AnchoredDiff {
+
+    private final @NotNull Supplier<RangeDiff> engines;
+    private final int parallelism;
+
+    /**
+     * Positions of the anchors in the first and in the second sequence, both ascending.
+     */
+    private int[] anchors1;
+    private int[] anchors2;
+    private int anchorCount;
+
+    /**
+     * @param engines creates the diff used for the chunks, one is created for each group of chunks
+     * @param parallelism maximum number of groups diffed in parallel, 1 to diff serially
+     */
+    AnchoredDiff(@NotNull Supplier<RangeDiff> engines, int parallelism) {
+        this.engines = engines;
+        this.parallelism = Math.max(parallelism, 1);
+    }
+
+    /**
+     * @param tokenCount upper bound of the token ids
+     */
+    @NotNull
+    EditScript diff(@NotNull int[] tokens1, @NotNull int[] tokens2, int tokenCount) {
+        findAnchors(tokens1, tokens2, tokenCount);
+        int chunkCount = anchorCount + 1;
+        int groupSize = (tokens1.length + tokens2.length) / parallelism + 1;
+
+        // groups of consecutive chunks of roughly the same size, the last group is diffed by the current thread
+        EditScript[] scripts = new EditScript[parallelism];
+        ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[parallelism];
+        int groups = 0;
+        int groupStart = 0;
+        for (int chunk = 0; chunk < chunkCount; chunk++) {
+            int end = chunk == anchorCount ? tokens1.length + tokens2.length : anchors1[chunk] + anchors2[chunk];
+            int start = groupStart == 0 ? 0 : anchors1[groupStart - 1] + anchors2[groupStart - 1];
+            if (chunk == anchorCount || end - start >= groupSize && groups < parallelism - 1) {
+                int firstChunk = groupStart;
+                int lastChunk = chunk;
+                EditScript script = new EditScript();
+                scripts[groups] = script;
+                if (chunk == anchorCount) {
+                    diffChunks(tokens1, tokens2, firstChunk, lastChunk, script);
+                } else {
+                    tasks[groups] = ForkJoinTask.adapt(() -> diffChunks(tokens1, tokens2, firstChunk, lastChunk, script)).fork();
+                }
+                groups++;
+                groupStart = chunk + 1;
+            }
+        }
+
+        EditScript result = new EditScript();
+        for (int i = 0; i < groups; i++) {
+            if (tasks[i] != null) {
+                tasks[i].join();
+            }
+            result.append(scripts[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Diffs the chunks with the given indexes (inclusive), every chunk but the last one is followed by its anchor.
+     */
+    private void diffChunks(@NotNull int[] tokens1, @NotNull int[] tokens2, int firstChunk, int lastChunk, @NotNull EditScript script) {
+        RangeDiff engine = engines.get();
+        for (int chunk = firstChunk; chunk <= lastChunk; chunk++) {
+            int start1 = chunk == 0 ? 0 : anchors1[chunk - 1] + 1;
+            int start2 = chunk == 0 ? 0 : anchors2[chunk - 1] + 1;
+            if (chunk == anchorCount) {
+                engine.diff(tokens1, start1, tokens1.length, tokens2, start2, tokens2.length, script);
+            } else {
+                engine.diff(tokens1, start1, anchors1[chunk], tokens2, start2, anchors2[chunk], script);
+                script.equal(1);
+            }
+        }
+    }
+
+    /**
+     * Matches the tokens occurring once in each sequence and keeps the longest run of matches which are in the same
+     * order in both sequences, stored in {@link #anchors1}, {@link #anchors2} and {@link #anchorCount}.
+     */
+    private void findAnchors(@NotNull int[] tokens1, @NotNull int[] tokens2, int tokenCount) {
+        // number of occurrences in the first sequence (capped at 2) and the position of the last one
+        byte[] counts1 = new byte[tokenCount];
+        byte[] counts2 = new byte[tokenCount];
+        int[] positions1 = new int[tokenCount];
+        for (int i = 0; i < tokens1.length; i++) {
+            int token = tokens1[i];
+            if (counts1[token] < 2) {
+                counts1[token]++;
+            }
+            positions1[token] = i;
+        }
+        for (int token : tokens2) {
+            if (counts2[token] < 2) {
+                counts2[token]++;
+            }
+        }
+
+        // longest increasing subsequence of the positions in the first sequence, taken in the order of the second one
+        int[] matches1 = new int[Math.min(tokens1.length, tokens2.length)];
+        int[] matches2 = new int[matches1.length];
+        // index of the last match of the longest runs of each length found so far and the match preceding each match
+        int[] tails = new int[matches1.length];
+        int[] previous = new int[matches1.length];
+        int matchCount = 0;
+        int length = 0;
+        for (int i2 = 0; i2 < tokens2.length; i2++) {
+            int token = tokens2[i2];
+            if (counts1[token] != 1 || counts2[token] != 1) {
+                continue;
+            }
+            int position1 = positions1[token];
+            int low = 0;
+            int high = length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (matches1[tails[middle]] < position1) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            matches1[matchCount] = position1;
+            matches2[matchCount] = i2;
+            previous[matchCount] = low == 0 ? -1 : tails[low - 1];
+            tails[low] = matchCount;
+            matchCount++;
+            if (low == length) {
+                length++;
+            }
+        }
+
+        anchors1 = new int[length];
+        anchors2 = new int[length];
+        anchorCount = length;
+        for (int i = length - 1, match = length == 0 ? -1 : tails[length - 1]; i >= 0; i--, match = previous[match]) {
+            anchors1[i] = matches1[match];
+            anchors2[i] = matches2[match];
+        }
+    }
+
+}
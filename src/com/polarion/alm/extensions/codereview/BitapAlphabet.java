@@ -0,0 +1,118 @@
+/*
+ * Copyright 2016 Polarion AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.polarion.alm.extensions.codereview;
+
+import java.util.Arrays;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Positions of the characters of a pattern as bit vectors for the Bitap algorithm. The pattern character at index
+ * {@code i} sets bit {@code length - i - 1}, the vectors have as many 64-bit words as the pattern needs. Patterns of
+ * Latin-1 characters use a dense table indexed by the character, other patterns a small open-addressing table.
+ */
+final class BitapAlphabet {
+
+    private static final int DENSE_SIZE = 256;
+
+    private final int words;
+    /**
+     * Bit vectors of the characters, {@link #words} longs each, the least significant word first.
+     */
+    private final @NotNull long[] masks;
+    /**
+     * Characters of the sparse table (unused slots are {@code 0} with row -1), {@code null} for a dense table.
+     */
+    private final char[] keys;
+    private final int[] rows;
+
+    BitapAlphabet(@NotNull String pattern) {
+        int length = pattern.length();
+        words = Math.max(1, (length + 63) >>> 6);
+        boolean dense = true;
+        for (int i = 0; i < length && dense; i++) {
+            dense = pattern.charAt(i) < DENSE_SIZE;
+        }
+        if (dense) {
+            keys = null;
+            rows = null;
+            masks = new long[DENSE_SIZE * words];
+            for (int i = 0; i < length; i++) {
+                setBit(pattern.charAt(i) * words, length - i - 1);
+            }
+        } else {
+            int capacity = Integer.highestOneBit(Math.max(length, 1) * 2 - 1) << 1;
+            keys = new char[capacity];
+            rows = new int[capacity];
+            Arrays.fill(rows, -1);
+            int symbols = 0;
+            int[] patternRows = new int[length];
+            for (int i = 0; i < length; i++) {
+                char c = pattern.charAt(i);
+                int slot = slot(c);
+                if (rows[slot] == -1) {
+                    keys[slot] = c;
+                    rows[slot] = symbols++ * words;
+                }
+                patternRows[i] = rows[slot];
+            }
+            masks = new long[symbols * words];
+            for (int i = 0; i < length; i++) {
+                setBit(patternRows[i], length - i - 1);
+            }
+        }
+    }
+
+    /**
+     * @return number of 64-bit words of the bit vectors
+     */
+    int words() {
+        return words;
+    }
+
+    @NotNull
+    long[] masks() {
+        return masks;
+    }
+
+    /**
+     * @return position of the bit vector of the given character in {@link #masks()}, -1 if the pattern doesn't
+     *         contain it
+     */
+    int row(char c) {
+        if (keys == null) {
+            return c < DENSE_SIZE ? c * words : -1;
+        }
+        return rows[slot(c)];
+    }
+
+    /**
+     * @return slot of the character in the sparse table or the empty slot where it belongs
+     */
+    private int slot(char c) {
+        int mask = keys.length - 1;
+        int slot = (c * 0x9e3779b1 >>> 16) & mask;
+        while (rows[slot] != -1 && keys[slot] != c) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void setBit(int row, int bit) {
+        masks[row + (bit >>> 6)] |= 1L << bit;
+    }
+
+}
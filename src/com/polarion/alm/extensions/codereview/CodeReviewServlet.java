@@ -15,22 +15,27 @@
  */
 package com.polarion.alm.extensions.codereview;
 
-import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
+import java.security.PrivilegedAction;
+import java.security.PrivilegedExceptionAction;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.function.BooleanSupplier;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
+import javax.security.auth.Subject;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -40,6 +45,8 @@ import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import com.polarion.alm.extensions.codereview.TextDiffMatchPatch.LineDiffAlgorithm;
+import com.polarion.alm.extensions.codereview.TextDiffMatchPatch.LineWhitespace;
 import com.polarion.alm.shared.api.SharedContext;
 import com.polarion.alm.shared.api.transaction.TransactionalExecutor;
 import com.polarion.alm.shared.api.utils.html.HtmlContentBuilder;
@@ -74,6 +81,8 @@ public class CodeReviewServlet extends HttpServlet {
 
     private static ISecurityService securityService = PlatformContext.getPlatform().lookupService(ISecurityService.class);
 
+    private final transient StaticResourceCache resources = new StaticResourceCache(uri -> getServletContext().getResourceAsStream(uri));
+
     static final Pattern fileExtension = Pattern.compile("\\.(java|groovy|sh|txt|properties|xml|classpath|js|css|project|jsp|vm|html|htm)$");
 
     static final String PARAM_ID = "id";
@@ -81,6 +90,21 @@ public class CodeReviewServlet extends HttpServlet {
     static final String PARAM_REVISIONS_TO_MARK = "revisionsToMark";
     static final String PARAM_SET_CURRENT_REVIEWER = "setCurrentReviewer";
 
+    /**
+     * Number of files above which the files are loaded when they are scrolled to, unless the URL tells otherwise.
+     */
+    private static final int LAZY_FILE_COUNT = Integer.getInteger("codereview.lazyFileCount", 50);
+
+    private static final String PAGE_HEAD = "<?xml version=\"1.0\" encoding=\"UTF-8\"?><html><head><title>Code Review</title><link rel=\"shortcut icon\" href=\"/polarion/ria/images/favicon.ico\" />" +
+            "<link rel=\"stylesheet\" href=\"/polarion/codereview/styles/styles.css\" type=\"text/css\">" +
+            " <script src=\"/polarion/codereview/highlight.pack.js\"></script>" +
+            " <script src=\"/polarion/codereview/script.js\"></script>" +
+            " <script src=\"/polarion/codereview/jquery-3.0.0.min.js\"></script>" +
+            " <script src=\"/polarion/codereview/sticky-kit.min.js\"></script>" +
+            "<link href=\"/polarion/codereview/styles/mono-blue.css\" rel=\"stylesheet\" type=\"text/css\">" +
+            "</head><body>";
+    private static final String PAGE_TAIL = "<script type=\"text/javascript\">hljs.initHighlightingOnLoad();</script>" + "</body></html>";
+
     @Override
     protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
         try {
@@ -91,10 +115,11 @@ public class CodeReviewServlet extends HttpServlet {
                 String relativeUri = uri.substring("/polarion/".length());
 
                 if (relativeUri.startsWith("codereview/compare/")) {
-                    serveCompare(request, response, relativeUri.substring("codereview/compare/".length()));
+                    String path = relativeUri.substring("codereview/compare/".length());
+                    serveAsync(request, response, (asyncRequest, asyncResponse) -> serveCompare(asyncRequest, asyncResponse, path));
                     return;
                 }
-                serveResource(response, relativeUri);
+                serveResource(request, response, relativeUri);
                 return;
             }
 
@@ -103,13 +128,24 @@ public class CodeReviewServlet extends HttpServlet {
             } else if (request.getParameter(PARAM_SET_CURRENT_REVIEWER) != null) {
                 doSetCurrentReviewer(request, response);
             } else {
-                serveMain(request, response);
+                serveAsync(request, response, this::serveMain);
             }
         } catch (Exception e) {
             logger.error(e.getMessage(), e);
         }
     }
 
+    /**
+     * Serves an expensive request by the {@link RequestExecutor} as the user of the request.
+     */
+    private void serveAsync(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response, @NotNull RequestExecutor.Handler handler) throws IOException {
+        Subject subject = securityService.getCurrentSubject();
+        RequestExecutor.execute(request, response, (asyncRequest, asyncResponse) -> securityService.doAsUser(subject, (PrivilegedExceptionAction<Void>) () -> {
+            handler.handle(asyncRequest, asyncResponse);
+            return null;
+        }));
+    }
+
     private void doReviewSelected(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response) {
         Collection<String> revisionsToMark = new HashSet<>();
         String[] revisionsToMarkArray = request.getParameterValues(PARAM_REVISIONS_TO_MARK);
@@ -141,62 +177,73 @@ public class CodeReviewServlet extends HttpServlet {
         response.setStatus(HttpServletResponse.SC_NO_CONTENT);
     }
 
-    private void serveCompare(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response, @NotNull String path) {
-        TransactionalExecutor.executeSafelyInReadOnlyTransaction(transaction -> {
-            try {
-                serveCompareInternal(transaction.context(), request, response, path);
-            } catch (Exception e) {
-                logger.error(e.getMessage(), e);
+    private void serveCompare(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response, @NotNull String path) throws IOException {
+        // a single file is compared, the pages loading the files lazily retry it when it is rejected
+        try (AdmissionControl.Ticket ticket = admit(1)) {
+            if (ticket == null) {
+                RequestExecutor.sendBusy(response);
+                return;
             }
-            return null;
-        });
+            TransactionalExecutor.executeSafelyInReadOnlyTransaction(transaction -> {
+                try {
+                    serveCompareInternal(transaction.context(), request, response, path);
+                } catch (Exception e) {
+                    logger.error(e.getMessage(), e);
+                }
+                return null;
+            });
+        }
     }
 
     private void serveCompareInternal(@NotNull SharedContext context, @NotNull HttpServletRequest request, @NotNull HttpServletResponse response, @NotNull String path) throws IOException {
-        String content;
-        try {
-            String revision = getRevisionParameter(request, "revision");
-            String revision2 = getRevisionParameter(request, "revision2");
-
-            ILocation repositoryLocation = Location.getLocationWithRepository(IRepositoryService.DEFAULT, "/"); //$NON-NLS-1$
-            IRepositoryReadOnlyConnection connection = repoService.getReadOnlyConnection(repositoryLocation);
-
-            path = URLDecoder.decode(path, StandardCharsets.UTF_8.name());
-            ILocation fileLocation = repositoryLocation.append(path);
-
-            HtmlFragmentBuilder builder = context.createHtmlFragmentBuilderFor().gwt();
-            if (revision == null) {
-                appendContent(builder, connection, fileLocation);
-            } else {
-                if (revision2 == null) {
-                    revision2 = revision;
-                    revision = connection.getPreviousState(revision);
-                }
-                ILocation location1 = fileLocation.setRevision(revision);
-                ILocation location2 = fileLocation.setRevision(revision2);
-
-                if (connection.isFile(location1) && connection.isFile(location2)) {
-                    new FileCompareRenderer(connection, builder).append(location1, location2);
-                } else if (connection.isFile(location1)) {
-                    appendContent(builder, connection, location1).attributes().style("background:#ffe6e6;");
+        try (Writer out = startPage(request, response)) {
+            try {
+                String revision = getRevisionParameter(request, "revision");
+                String revision2 = getRevisionParameter(request, "revision2");
+
+                ILocation repositoryLocation = Location.getLocationWithRepository(IRepositoryService.DEFAULT, "/"); //$NON-NLS-1$
+                IRepositoryReadOnlyConnection connection = repoService.getReadOnlyConnection(repositoryLocation);
+
+                path = URLDecoder.decode(path, StandardCharsets.UTF_8.name());
+                ILocation fileLocation = repositoryLocation.append(path);
+
+                HtmlFragmentBuilder fragmentBuilder = context.createHtmlFragmentBuilderFor().gwt();
+                // the container is looked up by the pages which load the files lazily
+                HtmlTagBuilder container = fragmentBuilder.tag().div();
+                container.attributes().className("cr_compare_content");
+                HtmlContentBuilder builder = container.append();
+                if (revision == null) {
+                    appendContent(builder, connection, fileLocation);
                 } else {
-                    appendContent(builder, connection, location2).attributes().style("background:#e6ffe6;");
+                    if (revision2 == null) {
+                        revision2 = revision;
+                        revision = connection.getPreviousState(revision);
+                    }
+                    ILocation location1 = fileLocation.setRevision(revision);
+                    ILocation location2 = fileLocation.setRevision(revision2);
+
+                    if (!isValidFileForCompare(connection.isFile(location2) ? location2 : location1, connection)) {
+                        appendNotTextFileWarning(builder);
+                    } else if (connection.isFile(location1) && connection.isFile(location2)) {
+                        LineDiffAlgorithm diffAlgorithm = Parameters.parseDiffAlgorithm(request.getParameter(Parameters.PARAM_DIFF_ALGORITHM));
+                        LineWhitespace whitespace = Parameters.parseWhitespace(request.getParameter(Parameters.PARAM_WHITESPACE));
+                        new FileCompareRenderer(connection, builder, diffAlgorithm != null ? diffAlgorithm : LineDiffAlgorithm.MYERS, whitespace != null ? whitespace : LineWhitespace.EXACT,
+                                DiffBudget.forSingleFile()).append(location1, location2);
+                    } else if (connection.isFile(location1)) {
+                        appendContent(builder, connection, location1).attributes().style("background:#ffe6e6;");
+                    } else {
+                        appendContent(builder, connection, location2).attributes().style("background:#e6ffe6;");
+                    }
                 }
+                writeFragment(fragmentBuilder, out);
+            } catch (RepositoryException e) {
+                out.write(escapeHTML(String.valueOf(e.getMessage())));
             }
-            content = createPageHtml(builder.toString());
-        } catch (RepositoryException e) {
-            content = e.getMessage();
-        }
-        OutputStream out = response.getOutputStream();
-        try {
-
-            serveContent(response, out, content);
-        } finally {
-            out.close();
+            out.write(PAGE_TAIL);
         }
     }
 
-    private @NotNull HtmlTagBuilder appendContent(@NotNull HtmlFragmentBuilder builder, @NotNull IRepositoryReadOnlyConnection connection, @NotNull ILocation location) {
+    private @NotNull HtmlTagBuilder appendContent(@NotNull HtmlContentBuilder builder, @NotNull IRepositoryReadOnlyConnection connection, @NotNull ILocation location) {
         HtmlTagBuilder compareContainer = builder.tag().div();
         compareContainer.attributes().className("cr_file_content");
 
@@ -218,13 +265,21 @@ public class CodeReviewServlet extends HttpServlet {
     private void serveMain(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response) {
         TransactionalExecutor.executeSafelyInReadOnlyTransaction(transaction -> {
             try {
-                OutputStream out = response.getOutputStream();
-                try {
-                    String content = render(transaction.context(), createParameters(request));
-                    serveContent(response, out, content);
-                } finally {
-                    out.close();
+                BooleanSupplier cancelled = RequestExecutor.getCancellation(request);
+                Parameters parameters = createParameters(request);
+                List<IRevision> revisions = parameters.getWorkItem().isPersisted() ? parameters.createRevisions().getComparableRevisionsToReview() : Collections.emptyList();
+                try (AdmissionControl.Ticket ticket = admit(estimateCost(parameters, revisions))) {
+                    if (ticket == null) {
+                        RequestExecutor.sendBusyPage(response);
+                        return null;
+                    }
+                    try (Writer out = startPage(request, response)) {
+                        render(transaction.context(), parameters, revisions, cancelled, out);
+                        out.write(PAGE_TAIL);
+                    }
                 }
+            } catch (CancellationException e) {
+                logger.info("Stopped rendering the code review, the request has ended");
             } catch (Exception e) {
                 logger.error(e.getMessage(), e);
             }
@@ -232,58 +287,66 @@ public class CodeReviewServlet extends HttpServlet {
         });
     }
 
-    private void serveContent(@NotNull HttpServletResponse response, @NotNull OutputStream out, @NotNull String content) throws UnsupportedEncodingException, IOException {
-        response.setContentType("text/html;charset=utf-8");
-        byte[] bout = content.getBytes(StandardCharsets.UTF_8.name());
-        response.setIntHeader("Content-Length", bout.length);
+    private @Nullable AdmissionControl.Ticket admit(long cost) {
+        return AdmissionControl.getInstance().tryAdmit(String.valueOf(securityService.getCurrentUser()), cost);
+    }
+
+    /**
+     * Estimates the cost of rendering the review before anything is read from the repository. The files of the lazy
+     * mode are compared by separate requests, so just the list of the files is rendered.
+     */
+    private static long estimateCost(@NotNull Parameters parameters, @NotNull List<IRevision> revisions) {
+        int fileCount = 0;
+        for (IRevision revision : revisions) {
+            fileCount += revision.getChangedLocations().size();
+        }
+        return isLazy(parameters, fileCount) ? 1 : Math.max(fileCount, 1);
+    }
+
+    private static boolean isLazy(@NotNull Parameters parameters, int fileCount) {
+        Boolean requestedLazy = parameters.getLazy();
+        return requestedLazy != null ? requestedLazy : fileCount > LAZY_FILE_COUNT;
+    }
+
+    /**
+     * Starts a page which is sent in chunks while it is rendered, its head is sent right away. The page is compressed
+     * if the client accepts it, its size isn't known up front.
+     */
+    private static @NotNull Writer startPage(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response) throws IOException {
         response.setContentType("text/html");
         response.setCharacterEncoding(StandardCharsets.UTF_8.name());
-        out.write(bout);
+        Writer out = new BufferedWriter(new OutputStreamWriter(ResponseCompression.open(request, response), StandardCharsets.UTF_8), 16 * 1024);
+        out.write(PAGE_HEAD);
         out.flush();
+        return out;
     }
 
-    private void serveResource(@NotNull HttpServletResponse response, @NotNull String uri) {
+    /**
+     * Sends the rendered fragment to the client.
+     */
+    private static void writeFragment(@NotNull HtmlFragmentBuilder builder, @NotNull Writer out) throws IOException {
+        builder.finished();
+        out.write(builder.toString());
+        out.flush();
+    }
+
+    private void serveResource(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response, @NotNull String uri) {
         try {
-            setContentType(uri, response);
             if (uri.startsWith("codereview/")) {
                 uri = uri.substring("codereview/".length());
             }
-            copyResource(getServletContext().getResourceAsStream(uri), response.getOutputStream());
+            StaticResourceCache.Resource resource = resources.get(uri);
+            if (resource == null) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND);
+                return;
+            }
+            resource.send(request, response);
         } catch (Exception e) {
             logger.error(e.getMessage(), e);
         }
     }
 
-    private static void setContentType(@NotNull String uri, @NotNull HttpServletResponse response) {
-        if (uri.endsWith(".js")) {
-            response.setContentType("text/javascript");
-        } else if (uri.endsWith(".html")) {
-            response.setContentType("text/html");
-        } else if (uri.endsWith(".png")) {
-            response.setContentType("image/png");
-        } else if (uri.endsWith("css")) {
-            response.setContentType("text/css");
-        }
-    }
-
-    private static void copyResource(@NotNull InputStream is, @NotNull OutputStream os) throws IOException {
-        try {
-            try {
-                byte[] buf = new byte[64 * 1024];
-                int len;
-                while ((len = is.read(buf)) != -1) {
-                    os.write(buf, 0, len);
-                }
-                os.flush();
-            } finally {
-                os.close();
-            }
-        } finally {
-            is.close();
-        }
-    }
-
-    private @NotNull String render(@NotNull SharedContext context, @NotNull Parameters parameters) {
+    private void render(@NotNull SharedContext context, @NotNull Parameters parameters, @NotNull List<IRevision> revisions, @NotNull BooleanSupplier cancelled, @NotNull Writer out) throws IOException {
         IWorkItem workItem = parameters.getWorkItem();
         boolean aggregated = parameters.isAggregatedCompare();
 
@@ -303,108 +366,127 @@ public class CodeReviewServlet extends HttpServlet {
             link.append().text("Show Aggregated View");
         }
 
-        if (workItem.isPersisted()) {
-            HtmlTagBuilder container = appendMainContainer(builder);
-
-            ILocation repoLocation = Location.getLocationWithRepository(IRepositoryService.DEFAULT, "/"); //$NON-NLS-1$
-            IRepositoryReadOnlyConnection connection = repoService.getReadOnlyConnection(repoLocation);
-
-            List<IRevision> revisions = parameters.createRevisions().getComparableRevisionsToReview();
-
-            if (aggregated) {
-                for (IRevision revision : revisions) {
-                    for (ILocationChangeMetaData metaData : revision.getChangedLocations()) {
-                        if (metaData.isModified()) {
-                            if (!wasModifiedAfter(metaData, revision, revisions)) {
-                                try {
-                                    processLocationMetaDataAggregated(container.append(), connection, metaData, revision, revisions, fileInfo);
-                                } catch (Exception e) {
-                                    logger.error(e.getMessage(), e);
-                                }
-                            }
-                        } else {
-                            try {
-                                processLocationMetaDataAggregated(container.append(), connection, metaData, revision, revisions, fileInfo);
-                            } catch (Exception e) {
-                                logger.error(e.getMessage(), e);
-                            }
-                        }
-                    }
-                }
+        HtmlTagBuilder whitespaceLink = nav.append().tag().a();
+        if (parameters.getWhitespace() == LineWhitespace.EXACT) {
+            whitespaceLink.attributes().href(parameters.link().withWhitespace(LineWhitespace.IGNORE_ALL).toHtmlLink());
+            whitespaceLink.append().text("Ignore Whitespace");
+        } else {
+            whitespaceLink.attributes().href(parameters.link().withWhitespace(LineWhitespace.EXACT).toHtmlLink());
+            whitespaceLink.append().text("Show Whitespace Changes");
+        }
 
-            } else {
-                for (IRevision revision : revisions) {
-                    appendRevisionLabel(container, revision);
-                    for (ILocationChangeMetaData metaData : revision.getChangedLocations()) {
-                        try {
-                            processLocationMetaData(container.append(), connection, metaData, revision, fileInfo);
-                        } catch (Exception e) {
-                            logger.error(e.getMessage(), e);
-                        }
-                    }
+        if (!workItem.isPersisted()) {
+            writeFragment(builder, out);
+            return;
+        }
+
+        ILocation repoLocation = Location.getLocationWithRepository(IRepositoryService.DEFAULT, "/"); //$NON-NLS-1$
+        IRepositoryReadOnlyConnection connection = repoService.getReadOnlyConnection(repoLocation);
+
+        DiffBudget budget = DiffBudget.forRequest();
+        LocationIndex index = aggregated ? new LocationIndex(revisions) : null;
+
+        int fileCount = 0;
+        for (IRevision revision : revisions) {
+            for (ILocationChangeMetaData metaData : revision.getChangedLocations()) {
+                if (isShown(metaData, revision, index)) {
+                    appendFileInfoLite(fileInfo.append(), metaData, revision);
+                    fileCount++;
                 }
             }
+        }
 
-            workItem.forget();
+        boolean lazy = isLazy(parameters, fileCount);
+        HtmlTagBuilder lazyLink = nav.append().tag().a();
+        if (lazy) {
+            lazyLink.attributes().href(parameters.link().withLazy(false).toHtmlLink());
+            lazyLink.append().text("Load All Files");
+        } else {
+            lazyLink.attributes().href(parameters.link().withLazy(true).toHtmlLink());
+            lazyLink.append().text("Load Files On Scroll");
         }
-        builder.finished();
-        String pageContent = builder.toString();
-
-        return createPageHtml(pageContent);
-    }
-
-    private @NotNull String createPageHtml(@NotNull String pageContent) {
-        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?><html><head><title>Code Review</title><link rel=\"shortcut icon\" href=\"/polarion/ria/images/favicon.ico\" />" +
-                "<link rel=\"stylesheet\" href=\"/polarion/codereview/styles/styles.css\" type=\"text/css\">" +
-                " <script src=\"/polarion/codereview/highlight.pack.js\"></script>" +
-                " <script src=\"/polarion/codereview/script.js\"></script>" +
-                " <script src=\"/polarion/codereview/jquery-3.0.0.min.js\"></script>" +
-                " <script src=\"/polarion/codereview/sticky-kit.min.js\"></script>" +
-                "<link href=\"/polarion/codereview/styles/mono-blue.css\" rel=\"stylesheet\" type=\"text/css\">" +
-                "</head><body>" +
-                pageContent + "<script type=\"text/javascript\">hljs.initHighlightingOnLoad();</script>" + "</body></html>";
-    }
-
-    private boolean wasModifiedAfter(@NotNull ILocationChangeMetaData metaData, @NotNull IRevision revisionMetaData, @NotNull List<IRevision> allRevisions) {
-        for (IRevision revision : allRevisions) {
-            if (getRevision(revision) > getRevision(revisionMetaData)) {
-                Collection<ILocationChangeMetaData> locationMetadatas = revision.getChangedLocations();
-                for (ILocationChangeMetaData locMetadata : locationMetadatas) {
-                    if (locMetadata.isModified()) {
-                        ILocation changeLocationTo = metaData.getChangeLocationTo().removeRevision();
-                        ILocation changeLocationTo2 = locMetadata.getChangeLocationTo().removeRevision();
-                        if (Objects.equals(changeLocationTo, changeLocationTo2)) {
-                            return true;
-                        }
+        // the list of the files is sent before they are compared, then each file is sent as soon as it is rendered
+        writeFragment(builder, out);
+
+        out.write("<div id=\"codeReviewContainer\" class=\"cr_main_container\">");
+        // placeholders of lazily loaded files are cheap, they are rendered by the thread of the request
+        RenderExecutor files = RenderExecutor.forRequest(out, !lazy, cancelled);
+        Subject subject = securityService.getCurrentSubject();
+        try {
+            for (IRevision revision : revisions) {
+                if (!aggregated) {
+                    HtmlFragmentBuilder labelBuilder = context.createHtmlFragmentBuilderFor().gwt();
+                    appendRevisionLabel(labelBuilder, revision);
+                    labelBuilder.finished();
+                    files.writeInline(labelBuilder.toString());
+                }
+                for (ILocationChangeMetaData metaData : revision.getChangedLocations()) {
+                    if (isShown(metaData, revision, index)) {
+                        files.render(() -> files.isParallel() ? renderFileInTransaction(subject, metaData, revision, index, parameters, budget)
+                                : renderFile(context, connection, metaData, revision, index, parameters, budget, lazy));
                     }
                 }
             }
+            files.finish();
+        } finally {
+            files.cancel();
         }
-        return false;
-    }
-
-    private @NotNull ILocation getFirstPrevState(@NotNull ILocationChangeMetaData metaData, @NotNull List<IRevision> allRevisions) {
-        for (IRevision revision : allRevisions) {
-            Collection<ILocationChangeMetaData> locationMetadatas = revision.getChangedLocations();
-            for (ILocationChangeMetaData locMetadata : locationMetadatas) {
-                if (locMetadata.isModified()) {
-                    ILocation changeLocationTo = metaData.getChangeLocationTo().removeRevision();
-                    ILocation changeLocationTo2 = locMetadata.getChangeLocationTo().removeRevision();
-                    if (Objects.equals(changeLocationTo, changeLocationTo2)) {
-                        return getPreviousState(locMetadata.getChangeLocationTo());
-                    }
-                }
+        out.write("</div>");
+
+        workItem.forget();
+        if (logger.isDebugEnabled()) {
+            logger.debug(FileContentCache.getInstance());
+        }
+    }
+
+    /**
+     * Renders the file on a thread of the {@link RenderExecutor} as the user of the request.
+     */
+    private @NotNull String renderFileInTransaction(@NotNull Subject subject, @NotNull ILocationChangeMetaData metaData, @NotNull IRevision revision, @Nullable LocationIndex index, @NotNull Parameters parameters,
+            @NotNull DiffBudget budget) {
+        return (String) securityService.doAsUser(subject, (PrivilegedAction<String>) () -> TransactionalExecutor.executeSafelyInReadOnlyTransaction(transaction -> {
+            IRepositoryReadOnlyConnection connection = repoService.getReadOnlyConnection(Location.getLocationWithRepository(IRepositoryService.DEFAULT, "/")); //$NON-NLS-1$
+            return renderFile(transaction.context(), connection, metaData, revision, index, parameters, budget, false);
+        }));
+    }
+
+    private @NotNull String renderFile(@NotNull SharedContext context, @NotNull IRepositoryReadOnlyConnection connection, @NotNull ILocationChangeMetaData metaData, @NotNull IRevision revision, @Nullable LocationIndex index,
+            @NotNull Parameters parameters, @NotNull DiffBudget budget, boolean lazy) {
+        HtmlFragmentBuilder fileBuilder = context.createHtmlFragmentBuilderFor().gwt();
+        try {
+            if (index != null) {
+                processLocationMetaDataAggregated(fileBuilder, connection, metaData, revision, index, parameters, budget, lazy);
+            } else {
+                processLocationMetaData(fileBuilder, connection, metaData, revision, parameters, budget, lazy);
             }
+        } catch (Exception e) {
+            logger.error(e.getMessage(), e);
         }
-        return getPreviousState(metaData.getChangeLocationTo());
+        fileBuilder.finished();
+        return fileBuilder.toString();
+    }
+
+    /**
+     * @return {@code false} if the change is left out of the aggregated view because the file was modified later
+     */
+    private boolean isShown(@NotNull ILocationChangeMetaData metaData, @NotNull IRevision revision, @Nullable LocationIndex index) {
+        if (index == null || metaData.isRemoved() || !(metaData.isModified() || metaData.isCreated() || metaData.isCopied())) {
+            return true;
+        }
+        return !index.isModifiedAfter(metaData, revision);
+    }
+
+    private @NotNull ILocation getFirstPrevState(@NotNull ILocationChangeMetaData metaData, @NotNull LocationIndex index) {
+        ILocationChangeMetaData firstModification = index.getFirstModification(metaData);
+        return getPreviousState((firstModification != null ? firstModification : metaData).getChangeLocationTo());
     }
 
     static int getRevision(@NotNull IRevision revision) {
         return Integer.parseInt(revision.getName());
     }
 
-    private void appendRevisionLabel(@NotNull HtmlTagBuilder container, @NotNull IRevision revision) {
-        HtmlTagBuilder revisionLabel = container.append().tag().div();
+    private void appendRevisionLabel(@NotNull HtmlContentBuilder builder, @NotNull IRevision revision) {
+        HtmlTagBuilder revisionLabel = builder.tag().div();
         revisionLabel.attributes().className("cr_revision_label");
         HtmlTagBuilder revisionLink = revisionLabel.append().tag().a();
         revisionLink.attributes().href(HtmlLinkFactory.fromEncodedRelativeUrl(revision.getViewURL()));
@@ -418,13 +500,7 @@ public class CodeReviewServlet extends HttpServlet {
         }
     }
 
-    private @NotNull HtmlTagBuilder appendMainContainer(@NotNull HtmlFragmentBuilder builder) {
-        HtmlTagBuilder container = builder.tag().div();
-        container.attributes().id("codeReviewContainer").className("cr_main_container");
-        return container;
-    }
-
-    private void processLocationMetaData(@NotNull HtmlContentBuilder builder, @NotNull IRepositoryReadOnlyConnection connection, @NotNull ILocationChangeMetaData metaData, @NotNull IRevision revision, @NotNull HtmlTagBuilder fileInfo) {
+    private void processLocationMetaData(@NotNull HtmlContentBuilder builder, @NotNull IRepositoryReadOnlyConnection connection, @NotNull ILocationChangeMetaData metaData, @NotNull IRevision revision, @NotNull Parameters parameters, @NotNull DiffBudget budget, boolean lazy) {
         ILocation changeLocationTo = metaData.getChangeLocationTo();
         HtmlTagBuilder div = builder.tag().div();
         div.attributes().className("change");
@@ -435,8 +511,9 @@ public class CodeReviewServlet extends HttpServlet {
             //rename?
         } else if (metaData.isCreated() || metaData.isCopied()) {
             appendFileInfo(boxBuilder, changeLocationTo, metaData, revision);
-            appendFileInfoLite(fileInfo.append(), changeLocationTo, metaData, revision);
-            if (isValidFileForCompare(changeLocationTo, connection)) {
+            if (lazy) {
+                appendLazyContent(boxBuilder, getPreviousState(changeLocationTo), changeLocationTo, parameters);
+            } else if (isValidFileForCompare(changeLocationTo, connection)) {
                 appendHTMLContent(boxBuilder, connection, changeLocationTo, true);
             } else {
                 appendNotTextFileWarning(boxBuilder);
@@ -444,8 +521,9 @@ public class CodeReviewServlet extends HttpServlet {
         } else if (metaData.isRemoved()) {
             ILocation previousStateLocation = getPreviousState(changeLocationTo);
             appendFileInfo(boxBuilder, previousStateLocation, metaData, revision);
-            appendFileInfoLite(fileInfo.append(), previousStateLocation, metaData, revision);
-            if (isValidFileForCompare(previousStateLocation, connection)) {
+            if (lazy) {
+                appendLazyContent(boxBuilder, previousStateLocation, changeLocationTo, parameters);
+            } else if (isValidFileForCompare(previousStateLocation, connection)) {
                 appendHTMLContent(boxBuilder, connection, previousStateLocation, false);
             } else {
                 appendNotTextFileWarning(boxBuilder);
@@ -453,28 +531,31 @@ public class CodeReviewServlet extends HttpServlet {
         } else if (metaData.isModified()) {
             ILocation previousState = getPreviousState(changeLocationTo);
             appendFileInfo(boxBuilder, changeLocationTo, metaData, revision);
-            appendFileInfoLite(fileInfo.append(), changeLocationTo, metaData, revision);
-            if (isValidFileForCompare(changeLocationTo, connection)) {
-                new FileCompareRenderer(connection, boxBuilder).append(previousState, changeLocationTo);
+            if (lazy) {
+                appendLazyContent(boxBuilder, previousState, changeLocationTo, parameters);
+            } else if (isValidFileForCompare(changeLocationTo, connection)) {
+                new FileCompareRenderer(connection, boxBuilder, parameters.getDiffAlgorithm(), parameters.getWhitespace(), budget).append(previousState, changeLocationTo);
             } else {
                 appendNotTextFileWarning(boxBuilder);
             }
         }
     }
 
-    private void processLocationMetaDataAggregated(@NotNull HtmlContentBuilder builder, @NotNull IRepositoryReadOnlyConnection connection, @NotNull ILocationChangeMetaData metaData, @NotNull IRevision revision, @NotNull List<IRevision> allRevisions, @NotNull HtmlTagBuilder fileInfo) {
+    private void processLocationMetaDataAggregated(@NotNull HtmlContentBuilder builder, @NotNull IRepositoryReadOnlyConnection connection, @NotNull ILocationChangeMetaData metaData, @NotNull IRevision revision, @NotNull LocationIndex index, @NotNull Parameters parameters, @NotNull DiffBudget budget, boolean lazy) {
         ILocation changeLocationTo = metaData.getChangeLocationTo();
         HtmlTagBuilder div = builder.tag().div();
         div.attributes().className("change");
         div.attributes().id(createElementIdFromLocation(changeLocationTo));
 
         HtmlContentBuilder boxBuilder = div.append();
+        ILocationChangeMetaData creation = metaData.isModified() ? index.getCreationBeforeModified(metaData) : null;
         if (metaData.isCopied() && (metaData.isRemoved() || metaData.isCreated())) {
             //rename?
         } else if (metaData.isCreated() || metaData.isCopied()) {
             appendFileInfo(boxBuilder, changeLocationTo, metaData, revision);
-            appendFileInfoLite(fileInfo.append(), changeLocationTo, metaData, revision);
-            if (isValidFileForCompare(changeLocationTo, connection)) {
+            if (lazy) {
+                appendLazyContent(boxBuilder, getPreviousState(changeLocationTo), changeLocationTo, parameters);
+            } else if (isValidFileForCompare(changeLocationTo, connection)) {
                 appendHTMLContent(boxBuilder, connection, changeLocationTo, true);
             } else {
                 appendNotTextFileWarning(boxBuilder);
@@ -482,24 +563,49 @@ public class CodeReviewServlet extends HttpServlet {
         } else if (metaData.isRemoved()) {
             ILocation previousState = getPreviousState(changeLocationTo);
             appendFileInfo(boxBuilder, previousState, metaData, revision);
-            appendFileInfoLite(fileInfo.append(), previousState, metaData, revision);
-            if (isValidFileForCompare(previousState, connection)) {
+            if (lazy) {
+                appendLazyContent(boxBuilder, previousState, changeLocationTo, parameters);
+            } else if (isValidFileForCompare(previousState, connection)) {
                 appendHTMLContent(boxBuilder, connection, previousState, false);
             } else {
                 appendNotTextFileWarning(boxBuilder);
             }
+        } else if (creation != null) {
+            // the file didn't exist before the reviewed revisions, its last content is shown as created
+            appendFileInfo(boxBuilder, changeLocationTo, metaData, revision);
+            if (lazy) {
+                appendLazyContent(boxBuilder, getPreviousState(creation.getChangeLocationTo()), changeLocationTo, parameters);
+            } else if (isValidFileForCompare(changeLocationTo, connection)) {
+                appendHTMLContent(boxBuilder, connection, changeLocationTo, true);
+            } else {
+                appendNotTextFileWarning(boxBuilder);
+            }
         } else if (metaData.isModified()) {
-            ILocation previousState = getFirstPrevState(metaData, allRevisions);
+            ILocation previousState = getFirstPrevState(metaData, index);
             appendFileInfo(boxBuilder, changeLocationTo, metaData, revision);
-            appendFileInfoLite(fileInfo.append(), changeLocationTo, metaData, revision);
-            if (isValidFileForCompare(changeLocationTo, connection)) {
-                new FileCompareRenderer(connection, boxBuilder).append(previousState, changeLocationTo);
+            if (lazy) {
+                appendLazyContent(boxBuilder, previousState, changeLocationTo, parameters);
+            } else if (isValidFileForCompare(changeLocationTo, connection)) {
+                List<ILocation> modifications = index.getModifications(metaData).stream().map(ILocationChangeMetaData::getChangeLocationTo).collect(Collectors.toList());
+                new FileCompareRenderer(connection, boxBuilder, parameters.getDiffAlgorithm(), parameters.getWhitespace(), budget).append(previousState, changeLocationTo, modifications);
             } else {
                 appendNotTextFileWarning(boxBuilder);
             }
         }
     }
 
+    /**
+     * Appends a placeholder which is replaced by the compare page of the given locations when it is scrolled to.
+     */
+    private void appendLazyContent(@NotNull HtmlContentBuilder builder, @NotNull ILocation first, @NotNull ILocation second, @NotNull Parameters parameters) {
+        HtmlTagBuilder placeholder = builder.tag().div();
+        placeholder.attributes().className("cr_lazy_content");
+        HtmlTagBuilder link = placeholder.append().tag().a();
+        link.attributes().href(FileCompareRenderer.createCompareLink(first, second, parameters.getDiffAlgorithm(), parameters.getWhitespace()));
+        link.attributes().target("_blank");
+        link.append().text("Show changes");
+    }
+
     private void appendNotTextFileWarning(HtmlContentBuilder builder) {
         builder.tag().div().append().text("This is not a text file.");
     }
@@ -535,6 +641,19 @@ public class CodeReviewServlet extends HttpServlet {
         fileLink.append().text(")");
     }
 
+    private void appendFileInfoLite(@NotNull HtmlContentBuilder builder, @NotNull ILocationChangeMetaData metaData, @NotNull IRevision revision) {
+        ILocation changeLocationTo = metaData.getChangeLocationTo();
+        if (metaData.isCopied() && (metaData.isRemoved() || metaData.isCreated())) {
+            //rename?
+        } else if (metaData.isCreated() || metaData.isCopied()) {
+            appendFileInfoLite(builder, changeLocationTo, metaData, revision);
+        } else if (metaData.isRemoved()) {
+            appendFileInfoLite(builder, getPreviousState(changeLocationTo), metaData, revision);
+        } else if (metaData.isModified()) {
+            appendFileInfoLite(builder, changeLocationTo, metaData, revision);
+        }
+    }
+
     private void appendFileInfoLite(@NotNull HtmlContentBuilder builder, @NotNull ILocation changeLocationTo, @NotNull ILocationChangeMetaData metaData, @NotNull IRevision revision) {
         HtmlTagBuilder locationLabel = builder.tag().div();
         locationLabel.attributes().className("cr_file_label_lite");
@@ -559,12 +678,12 @@ public class CodeReviewServlet extends HttpServlet {
         return changeLocationTo.serialize().replace("#", "_");
     }
 
-    private @NotNull ILocation getPreviousState(@NotNull ILocation location) {
+    static @NotNull ILocation getPreviousState(@NotNull ILocation location) {
         Integer toRevision = getPrevRevision(location.getRevision());
         return location.setRevision(toRevision.toString());
     }
 
-    private @NotNull Integer getPrevRevision(@NotNull String revision) {
+    private static @NotNull Integer getPrevRevision(@NotNull String revision) {
         Integer toRevision = Integer.valueOf(revision);
         if (toRevision > 0) {
             toRevision -= 1;
@@ -598,15 +717,26 @@ public class CodeReviewServlet extends HttpServlet {
     }
 
     static @NotNull String getStringContent(@NotNull IRepositoryReadOnlyConnection connection, @NotNull ILocation location) {
-        String result = "";
+        String result = FileContentCache.getInstance().get(location, () -> readStringContent(connection, location));
+        return result != null ? result : "";
+    }
+
+    private static @Nullable String readStringContent(@NotNull IRepositoryReadOnlyConnection connection, @NotNull ILocation location) {
         try {
-            try (BufferedReader buffer = new BufferedReader(new InputStreamReader(connection.getContent(location), StandardCharsets.UTF_8))) {
-                result = buffer.lines().collect(Collectors.joining("\n"));
+            // the line ends are kept as they are, the diffs treat \r\n, \r and \n as equal
+            try (Reader reader = new InputStreamReader(connection.getContent(location), StandardCharsets.UTF_8)) {
+                StringBuilder content = new StringBuilder();
+                char[] buf = new char[16 * 1024];
+                int len;
+                while ((len = reader.read(buf)) != -1) {
+                    content.append(buf, 0, len);
+                }
+                return content.toString();
             }
         } catch (IOException e) {
             logger.error(e.getMessage(), e);
+            return null;
         }
-        return result;
     }
 
     static @NotNull String escapeHTML(@NotNull String str) {
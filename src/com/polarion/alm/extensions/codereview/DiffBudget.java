@@ -0,0 +1,128 @@
+/*
+ * Copyright 2016 Polarion AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.polarion.alm.extensions.codereview;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Work which may be spent on diffs while serving one request. It is shared by all files rendered for the request:
+ * <ul>
+ * <li>time and characters of the line diffs, once they are spent the remaining files are only summarized,</li>
+ * <li>time of optional work (like highlighting the changed words of modified lines), once it is spent only the line
+ * diffs are rendered.</li>
+ * </ul>
+ */
+final class DiffBudget {
+
+    /**
+     * Default time of the line diffs of a request in milliseconds.
+     */
+    private static final int DEFAULT_DIFF_MILLIS = Integer.getInteger("codereview.diffBudget", 20000);
+
+    /**
+     * Default combined size (in characters) of the files diffed in a request.
+     */
+    private static final int DEFAULT_DIFF_CHARS = Integer.getInteger("codereview.diffCharsBudget", 32 * 1024 * 1024);
+
+    /**
+     * Default time of the optional work of a request in milliseconds.
+     */
+    private static final int DEFAULT_INTRA_LINE_MILLIS = Integer.getInteger("codereview.intraLineBudget", 2000);
+
+    @NotNull
+    private final AtomicLong remainingNanos;
+    @NotNull
+    private final AtomicLong remainingChars;
+    @NotNull
+    private final AtomicLong remainingIntraLineNanos;
+
+DiffBudget(long budget, long intraLineBudget, @NotNull TimeUnit unit, long chars) {
+        remainingNanos = new AtomicLong(unit.toNanos(budget));
+        remainingIntraLineNanos = new AtomicLong(unit.toNanos(intraLineBudget));
+        remainingChars = new AtomicLong(chars);
+    }
+
+    @NotNull
+static DiffBudget forRequest() {
+        return new DiffBudget(DEFAULT_DIFF_MILLIS, DEFAULT_INTRA_LINE_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_DIFF_CHARS);
+    }
+
+    /**
+     * Budget of a request comparing a single pair of files, e.g. one which was just summarized on the review page. The
+     * files are always diffed whatever their size, a diff reaching the time limit is just coarser.
+     */
+    @NotNull
+static DiffBudget forSingleFile() {
+        return new DiffBudget(DEFAULT_DIFF_MILLIS, DEFAULT_INTRA_LINE_MILLIS, TimeUnit.MILLISECONDS, Long.MAX_VALUE);
+    }
+
+    /**
+     * @return {@code true} if no more files may be diffed
+     */
+boolean isExhausted() {
+        return remainingNanos.get() <= 0 || remainingChars.get() <= 0;
+    }
+
+    /**
+     * Reserves the characters of files which are going to be diffed.
+     *
+     * @return {@code false} if the files may not be diffed, nothing is reserved then
+     */
+boolean tryAcquire(long chars) {
+        if (remainingNanos.get() <= 0) {
+            return false;
+        }
+        long remaining;
+        do {
+            remaining = remainingChars.get();
+            if (remaining < chars) {
+                return false;
+            }
+        } while (!remainingChars.compareAndSet(remaining, remaining - chars));
+        return true;
+    }
+
+long getRemainingMillis() {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(remainingNanos.get()));
+    }
+
+    /**
+     * Charges the budget with a diff which was started at the given time (as returned by {@link System#nanoTime()}).
+     */
+void consumeSince(long startNanos) {
+        remainingNanos.addAndGet(startNanos - System.nanoTime());
+    }
+
+boolean isIntraLineExhausted() {
+        return remainingIntraLineNanos.get() <= 0;
+    }
+
+long getIntraLineRemainingMillis() {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(remainingIntraLineNanos.get()));
+    }
+
+    /**
+     * Charges the budget with optional work which was started at the given time (as returned by
+     * {@link System#nanoTime()}).
+     */
+void consumeIntraLineSince(long startNanos) {
+        remainingIntraLineNanos.addAndGet(startNanos - System.nanoTime());
+    }
+
+}
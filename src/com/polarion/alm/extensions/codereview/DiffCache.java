@@ -0,0 +1,355 @@
+/*
+ * Copyright 2016 Polarion AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.polarion.alm.extensions.codereview;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import com.polarion.alm.extensions.codereview.TextDiffMatchPatch.DiffOperation;
+import com.polarion.alm.extensions.codereview.TextDiffMatchPatch.LineDiffAlgorithm;
+import com.polarion.alm.extensions.codereview.TextDiffMatchPatch.LineWhitespace;
+import com.polarion.subterra.base.location.ILocation;
+
+/**
+ * Persistent cache of line diffs between files at fixed revisions, which never change. Each diff is stored in its own
+ * file as a sequence of operations with varint lengths, the compared texts are not stored. The least recently used
+ * files are deleted when the cache grows over its size.
+ */
+@SuppressWarnings("nls")
+final class DiffCache {
+
+    private static final Logger logger = Logger.getLogger(DiffCache.class);
+
+    /**
+     * Maximum size (in bytes) of the cache directory, 0 disables the cache.
+     */
+    private static final long MAX_BYTES = Long.getLong("codereview.diffCacheSize", 256L * 1024 * 1024);
+
+    private static final int MAGIC = 0x43524431; // CRD1
+
+    private static final DiffOperation[] OPERATIONS = DiffOperation.values();
+
+    @Nullable
+    private static final DiffCache INSTANCE = createInstance();
+
+    @NotNull
+    private final Path directory;
+    private final long maxBytes;
+    @NotNull
+    private final AtomicLong bytes;
+
+    DiffCache(@NotNull Path directory, long maxBytes) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.maxBytes = maxBytes;
+        long size = 0;
+        for (Path file : listFiles()) {
+            size += Files.size(file);
+        }
+        bytes = new AtomicLong(size);
+    }
+
+    @Nullable
+    private static DiffCache createInstance() {
+        String directory = System.getProperty("codereview.diffCacheDir");
+        if (directory == null) {
+            String data = System.getProperty("com.polarion.data");
+            if (data == null) {
+                return null;
+            }
+            directory = Paths.get(data, "codereview", "diffs").toString();
+        }
+        if (MAX_BYTES <= 0) {
+            return null;
+        }
+        try {
+            return new DiffCache(Paths.get(directory), MAX_BYTES);
+        } catch (IOException e) {
+            logger.error("Diff cache disabled, " + e.getMessage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the cache, {@code null} if it is disabled
+     */
+    @Nullable
+    static DiffCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return key of the diff of the given locations, {@code null} if one of them has no numeric revision
+     */
+    @Nullable
+    static String createKey(@NotNull ILocation first, @NotNull ILocation second, @NotNull LineDiffAlgorithm diffAlgorithm, @NotNull LineWhitespace whitespace) {
+        String revision1 = first.getRevision();
+        String revision2 = second.getRevision();
+        if (!isNumeric(revision1) || !isNumeric(revision2)) {
+            return null;
+        }
+        return first.getRepositoryName() + ":" + first.getLocationPath() + "@" + revision1 + ":" + second.getLocationPath() + "@" + revision2 + ":"
+                + diffAlgorithm.name().toLowerCase(Locale.ENGLISH) + ":" + whitespace.name().toLowerCase(Locale.ENGLISH);
+    }
+
+    private static boolean isNumeric(@Nullable String revision) {
+        return revision != null && !revision.isEmpty() && revision.chars().allMatch(Character::isDigit);
+    }
+
+    /**
+     * @return the stored diff of the given texts, {@code null} if there is none or it doesn't fit the texts
+     */
+    @Nullable
+    DiffList load(@NotNull String key, @NotNull String text1, @NotNull String text2) {
+        Path file = getFile(key);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try {
+            ByteBuffer buffer;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                buffer = ByteBuffer.allocate((int) channel.size());
+                while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                    // read fully
+                }
+            }
+            buffer.flip();
+            DiffList diffs = decode(buffer, key, text1, text2);
+            if (diffs != null) {
+                // the modification time orders the files for the eviction
+                Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            }
+            return diffs;
+        } catch (IOException | BufferUnderflowException e) {
+            logger.warn("Cannot read cached diff " + file + ", " + e.getMessage());
+            return null;
+        }
+    }
+
+    void store(@NotNull String key, @NotNull DiffList diffs) {
+        Path file = getFile(key);
+        ByteBuffer buffer = encode(key, diffs);
+        Path temporary = null;
+        long added;
+        try {
+            temporary = Files.createTempFile(directory, "diff", ".tmp");
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            synchronized (this) {
+                // another request may have stored the same diff meanwhile, only the difference is added then
+                long previous = Files.exists(file) ? Files.size(file) : 0;
+                // readers never see a partially written file
+                Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                added = buffer.limit() - previous;
+            }
+        } catch (IOException e) {
+            logger.warn("Cannot cache diff " + file + ", " + e.getMessage());
+            deleteQuietly(temporary);
+            return;
+        }
+        if (bytes.addAndGet(added) > maxBytes) {
+            evict();
+        }
+    }
+
+    /**
+     * Deletes the least recently used files until the cache takes 3/4 of its size.
+     */
+    private synchronized void evict() {
+        if (bytes.get() <= maxBytes) {
+            return;
+        }
+        try {
+            List<Path> files = listFiles();
+            Map<Path, BasicFileAttributes> attributes = new HashMap<>();
+            long size = 0;
+            for (Path file : files) {
+                BasicFileAttributes fileAttributes = Files.readAttributes(file, BasicFileAttributes.class);
+                attributes.put(file, fileAttributes);
+                size += fileAttributes.size();
+            }
+            files.sort(Comparator.comparing(file -> attributes.get(file).lastModifiedTime()));
+            for (Path file : files) {
+                if (size <= maxBytes / 4 * 3) {
+                    break;
+                }
+                if (Files.deleteIfExists(file)) {
+                    size -= attributes.get(file).size();
+                }
+            }
+            bytes.set(size);
+        } catch (IOException e) {
+            logger.warn("Cannot clean up the diff cache, " + e.getMessage());
+        }
+    }
+
+    private static void deleteQuietly(@Nullable Path file) {
+        if (file != null) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                // the file is left behind
+            }
+        }
+    }
+
+    @NotNull
+    private List<Path> listFiles() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.diff")) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        return files;
+    }
+
+    @NotNull
+    private Path getFile(@NotNull String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder(digest.length * 2 + 5);
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return directory.resolve(name.append(".diff").toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Encodes the key, the lengths of the texts and the operations, each operation by its code and its length in
+     * the first text (the second one for insertions), equalities by their length in the second text too.
+     */
+    @NotNull
+    static ByteBuffer encode(@NotNull String key, @NotNull DiffList diffs) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 5 * 4 + keyBytes.length + diffs.size() * 11);
+        buffer.putInt(MAGIC);
+        putVarint(buffer, keyBytes.length);
+        buffer.put(keyBytes);
+        putVarint(buffer, diffs.getText1().length());
+        putVarint(buffer, diffs.getText2().length());
+        putVarint(buffer, diffs.size());
+        for (int i = 0; i < diffs.size(); i++) {
+            DiffOperation operation = diffs.getOperation(i);
+            buffer.put((byte) operation.ordinal());
+            putVarint(buffer, diffs.getLength(i));
+            if (operation == DiffOperation.EQUAL) {
+                int end2 = i + 1 < diffs.size() ? diffs.getStart2(i + 1) : diffs.getText2().length();
+                putVarint(buffer, end2 - diffs.getStart2(i));
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    @Nullable
+    static DiffList decode(@NotNull ByteBuffer buffer, @NotNull String key, @NotNull String text1, @NotNull String text2) {
+        if (buffer.getInt() != MAGIC) {
+            return null;
+        }
+        int keyLength = getVarint(buffer);
+        if (keyLength < 0 || keyLength > buffer.remaining()) {
+            return null;
+        }
+        byte[] keyBytes = new byte[keyLength];
+        buffer.get(keyBytes);
+        if (!key.equals(new String(keyBytes, StandardCharsets.UTF_8)) || getVarint(buffer) != text1.length() || getVarint(buffer) != text2.length()) {
+            return null;
+        }
+        int size = getVarint(buffer);
+        if (size < 0 || size > buffer.remaining()) {
+            return null;
+        }
+        DiffList diffs = new DiffList(text1, text2, size);
+        int position1 = 0;
+        int position2 = 0;
+        for (int i = 0; i < size; i++) {
+            int code = buffer.get();
+            if (code < 0 || code >= OPERATIONS.length) {
+                return null;
+            }
+            DiffOperation operation = OPERATIONS[code];
+            int length = getVarint(buffer);
+            if (length < 0) {
+                return null;
+            }
+            diffs.add(operation, position1, position2, length);
+            switch (operation) {
+            case EQUAL:
+                position1 += length;
+                position2 += getVarint(buffer);
+                break;
+            case DELETE:
+                position1 += length;
+                break;
+            case INSERT:
+                position2 += length;
+                break;
+            }
+        }
+        return position1 == text1.length() && position2 == text2.length() ? diffs : null;
+    }
+
+    private static void putVarint(@NotNull ByteBuffer buffer, int value) {
+        while ((value & ~0x7f) != 0) {
+            buffer.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static int getVarint(@NotNull ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new BufferUnderflowException();
+    }
+
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2016 Polarion AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.polarion.alm.extensions.codereview;
+
+import java.util.function.BiFunction;
+
+import org.jetbrains.annotations.NotNull;
+
+import com.polarion.alm.extensions.codereview.TextDiffMatchPatch.DiffOperation;
+
+/**
+ * Net change of consecutive line diffs. A line of the first text of the first diff stays equal when both diffs keep it
+ * equal, every other line is deleted or inserted. The diffs must be computed at line level with any line end (see
+ * {@link TextDiffMatchPatch#setDiffIgnoreLineEnds(boolean)}), so the equal ranges of both texts hold the same number
+ * of lines.
+ */
+final class DiffComposition {
+
+    /**
+     * Pairs the lines of an equal range of one text with the lines of the equal range of the other text.
+     */
+    private static final class LineWalker {
+
+        @NotNull
+        private final String text;
+        @NotNull
+        private final String other;
+        private int position;
+        private int otherPosition;
+
+        LineWalker(@NotNull String text, int position, @NotNull String other, int otherPosition) {
+            this.text = text;
+            this.position = position;
+            this.other = other;
+            this.otherPosition = otherPosition;
+        }
+
+        /**
+         * @param target start of a line of the text at or after the current position
+         * @return start of the corresponding line of the other text
+         */
+        int advanceTo(int target) {
+            while (position < target) {
+                position = nextLine(text, position);
+                otherPosition = nextLine(other, otherPosition);
+            }
+            return otherPosition;
+        }
+
+    }
+
+    private DiffComposition() {
+    }
+
+    /**
+     * @param first diff of two texts
+     * @param second diff of the second text of the first diff to another text
+     * @return diff of the first text of the first diff to the second text of the second diff
+     */
+    @NotNull
+    static DiffList compose(@NotNull DiffList first, @NotNull DiffList second) {
+        String text0 = first.getText1();
+        String text1 = first.getText2();
+        String text2 = second.getText2();
+        DiffList result = new DiffList(text0, text2, Math.max(first.size(), second.size()));
+        int position0 = 0;
+        int position2 = 0;
+        int i = nextEqual(first, 0);
+        int j = nextEqual(second, 0);
+        LineWalker walker1 = i < first.size() ? new LineWalker(text1, first.getStart2(i), text0, first.getStart1(i)) : null;
+        LineWalker walker2 = j < second.size() ? new LineWalker(text1, second.getStart1(j), text2, second.getStart2(j)) : null;
+        while (walker1 != null && walker2 != null) {
+            // the equal ranges of both diffs in the middle text
+            int start1 = first.getStart2(i);
+            int end1 = i + 1 < first.size() ? first.getStart2(i + 1) : text1.length();
+            int start2 = second.getStart1(j);
+            int end2 = start2 + second.getLength(j);
+            int start = Math.max(start1, start2);
+            int end = Math.min(end1, end2);
+            if (start < end) {
+                int equalStart0 = walker1.advanceTo(start);
+                int equalStart2 = walker2.advanceTo(start);
+                int equalEnd0 = walker1.advanceTo(end);
+                int equalEnd2 = walker2.advanceTo(end);
+                addChange(result, position0, equalStart0, position2, equalStart2);
+                addEqual(result, equalStart0, equalStart2, equalEnd0 - equalStart0);
+                position0 = equalEnd0;
+                position2 = equalEnd2;
+            }
+            if (end1 <= end2) {
+                i = nextEqual(first, i + 1);
+                walker1 = i < first.size() ? new LineWalker(text1, first.getStart2(i), text0, first.getStart1(i)) : null;
+            } else {
+                j = nextEqual(second, j + 1);
+                walker2 = j < second.size() ? new LineWalker(text1, second.getStart1(j), text2, second.getStart2(j)) : null;
+            }
+        }
+        addChange(result, position0, text0.length(), position2, text2.length());
+        return result;
+    }
+
+    /**
+     * Diffs the deleted and inserted blocks replacing each other again. A line which the composed diffs changed and
+     * restored, or moved within a block, is equal afterwards.
+     *
+     * @param differ computes the line diff of two blocks
+     */
+    @NotNull
+    static DiffList refine(@NotNull DiffList diffs, @NotNull BiFunction<String, String, DiffList> differ) {
+        String text1 = diffs.getText1();
+        String text2 = diffs.getText2();
+        DiffList result = new DiffList(text1, text2, diffs.size());
+        for (int i = 0; i < diffs.size(); i++) {
+            DiffOperation operation = diffs.getOperation(i);
+            if (operation == DiffOperation.DELETE && i + 1 < diffs.size() && diffs.getOperation(i + 1) == DiffOperation.INSERT) {
+                int start1 = diffs.getStart1(i);
+                int start2 = diffs.getStart2(i + 1);
+                DiffList block = differ.apply(text1.substring(start1, start1 + diffs.getLength(i)), text2.substring(start2, start2 + diffs.getLength(i + 1)));
+                for (int k = 0; k < block.size(); k++) {
+                    add(result, block.getOperation(k), start1 + block.getStart1(k), start2 + block.getStart2(k), block.getLength(k));
+                }
+                i++;
+            } else {
+                add(result, operation, diffs.getStart1(i), diffs.getStart2(i), diffs.getLength(i));
+            }
+        }
+        return result;
+    }
+
+    private static int nextEqual(@NotNull DiffList diffs, int index) {
+        while (index < diffs.size() && diffs.getOperation(index) != DiffOperation.EQUAL) {
+            index++;
+        }
+        return index;
+    }
+
+    private static void addChange(@NotNull DiffList result, int start1, int end1, int start2, int end2) {
+        if (start1 < end1) {
+            result.add(DiffOperation.DELETE, start1, start2, end1 - start1);
+        }
+        if (start2 < end2) {
+            result.add(DiffOperation.INSERT, end1, start2, end2 - start2);
+        }
+    }
+
+    private static void addEqual(@NotNull DiffList result, int start1, int start2, int length) {
+        add(result, DiffOperation.EQUAL, start1, start2, length);
+    }
+
+    /**
+     * Adds the operation, an equality directly following another one is merged with it.
+     */
+    private static void add(@NotNull DiffList result, @NotNull DiffOperation operation, int start1, int start2, int length) {
+        if (length == 0) {
+            return;
+        }
+        int last = result.size() - 1;
+        if (operation == DiffOperation.EQUAL && last >= 0 && result.getOperation(last) == DiffOperation.EQUAL) {
+            result.setLength(last, result.getLength(last) + length);
+        } else {
+            result.add(operation, start1, start2, length);
+        }
+    }
+
+    /**
+     * @return start of the line following the one at the given position, any line end is recognized
+     */
+    private static int nextLine(@NotNull String text, int position) {
+        int length = text.length();
+        for (int i = position; i < length; i++) {
+            char c = text.charAt(i);
+            if (c == '\n') {
+                return i + 1;
+            }
+            if (c == '\r') {
+                return i + 1 < length && text.charAt(i + 1) == '\n' ? i + 2 : i + 1;
+            }
+        }
+        return length;
+    }
+
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright 2016 Polarion AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.polarion.alm.extensions.codereview;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jetbrains.annotations.NotNull;
+
+import com.polarion.alm.extensions.codereview.TextDiffMatchPatch.Diff;
+import com.polarion.alm.extensions.codereview.TextDiffMatchPatch.DiffOperation;
+
+/**
+ * Array-backed alternative to a {@code List<Diff>}. Every operation is stored as an entry in parallel arrays holding
+ * the operation code, the position in both compared texts where the operation starts and its length. Equalities and
+ * deletions take their text from the first text, insertions from the second one, so no text is copied until
+ * {@link #getText(int)} is called.
+ */
+@SuppressWarnings("nls")
+public final class DiffList {
+
+    private static final DiffOperation[] OPERATIONS = DiffOperation.values();
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private final @NotNull String text1;
+    private final @NotNull String text2;
+
+    private byte[] operations;
+    private int[] starts1;
+    private int[] starts2;
+    private int[] lengths;
+    private int size;
+
+    public DiffList(@NotNull String text1, @NotNull String text2) {
+        this(text1, text2, DEFAULT_CAPACITY);
+    }
+
+    DiffList(@NotNull String text1, @NotNull String text2, int capacity) {
+        this.text1 = text1;
+        this.text2 = text2;
+        int initialCapacity = Math.max(capacity, 1);
+        operations = new byte[initialCapacity];
+        starts1 = new int[initialCapacity];
+        starts2 = new int[initialCapacity];
+        lengths = new int[initialCapacity];
+    }
+
+    /**
+     * Creates a compact copy of the given diffs. The compared texts are reconstructed from the diffs.
+     */
+    static @NotNull DiffList fromDiffs(@NotNull List<Diff> diffs) {
+        StringBuilder first = new StringBuilder();
+        StringBuilder second = new StringBuilder();
+        for (Diff diff : diffs) {
+            if (diff.getOperation() != DiffOperation.INSERT) {
+                first.append(diff.getText());
+            }
+            if (diff.getOperation() != DiffOperation.DELETE) {
+                second.append(diff.getText());
+            }
+        }
+        DiffList result = new DiffList(first.toString(), second.toString(), diffs.size());
+        int position1 = 0;
+        int position2 = 0;
+        for (Diff diff : diffs) {
+            int length = diff.getText().length();
+            result.add(diff.getOperation(), position1, position2, length);
+            if (diff.getOperation() != DiffOperation.INSERT) {
+                position1 += length;
+            }
+            if (diff.getOperation() != DiffOperation.DELETE) {
+                position2 += length;
+            }
+        }
+        return result;
+    }
+
+    public @NotNull String getText1() {
+        return text1;
+    }
+
+    public @NotNull String getText2() {
+        return text2;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public @NotNull DiffOperation getOperation(int index) {
+        checkIndex(index);
+        return OPERATIONS[operations[index]];
+    }
+
+    public int getLength(int index) {
+        checkIndex(index);
+        return lengths[index];
+    }
+
+    /**
+     * @return position in the first text where the operation at the given index starts
+     */
+    public int getStart1(int index) {
+        checkIndex(index);
+        return starts1[index];
+    }
+
+    /**
+     * @return position in the second text where the operation at the given index starts
+     */
+    public int getStart2(int index) {
+        checkIndex(index);
+        return starts2[index];
+    }
+
+    /**
+     * @return the text the operation at the given index takes its characters from
+     */
+    public @NotNull String getSource(int index) {
+        return getOperation(index) == DiffOperation.INSERT ? text2 : text1;
+    }
+
+    /**
+     * @return position of the operation at the given index within {@link #getSource(int)}
+     */
+    public int getStart(int index) {
+        return getOperation(index) == DiffOperation.INSERT ? starts2[index] : starts1[index];
+    }
+
+    /**
+     * @return view of the text of the operation at the given index, the text is not copied
+     */
+    public @NotNull TextSegment getSegment(int index) {
+        int start = getStart(index);
+        return new TextSegment(getSource(index), start, start + lengths[index]);
+    }
+
+    public @NotNull String getText(int index) {
+        int start = getStart(index);
+        return getSource(index).substring(start, start + lengths[index]);
+    }
+
+    /**
+     * @return the diffs as regular {@link Diff} objects, e.g. for the patch functions of {@link TextDiffMatchPatch}
+     */
+    public @NotNull List<Diff> toDiffs() {
+        List<Diff> diffs = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            diffs.add(new Diff(getOperation(i), getText(i)));
+        }
+        return diffs;
+    }
+
+    /**
+     * Appends an operation of the given length directly after the last operation, merging it with the last operation
+     * when both are of the same kind. Empty operations are ignored.
+     */
+    void append(@NotNull DiffOperation operation, int length) {
+        if (length == 0) {
+            return;
+        }
+        if (size > 0 && operations[size - 1] == operation.ordinal()) {
+            lengths[size - 1] += length;
+            return;
+        }
+        add(operation, end1(), end2(), length);
+    }
+
+    /**
+     * Appends an operation without merging it with the last one.
+     */
+    void add(@NotNull DiffOperation operation, int start1, int start2, int length) {
+        ensureCapacity(size + 1);
+        set(size++, operation, start1, start2, length);
+    }
+
+    void insert(int index, @NotNull DiffOperation operation, int start1, int start2, int length) {
+        if (index < 0 || index > size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        ensureCapacity(size + 1);
+        int moved = size - index;
+        System.arraycopy(operations, index, operations, index + 1, moved);
+        System.arraycopy(starts1, index, starts1, index + 1, moved);
+        System.arraycopy(starts2, index, starts2, index + 1, moved);
+        System.arraycopy(lengths, index, lengths, index + 1, moved);
+        size++;
+        set(index, operation, start1, start2, length);
+    }
+
+    void set(int index, @NotNull DiffOperation operation, int start1, int start2, int length) {
+        operations[index] = (byte) operation.ordinal();
+        starts1[index] = start1;
+        starts2[index] = start2;
+        lengths[index] = length;
+    }
+
+    void setLength(int index, int length) {
+        lengths[index] = length;
+    }
+
+    /**
+     * Moves the start of the operation at the given index by the given offset in both texts.
+     */
+    void shift(int index, int offset) {
+        starts1[index] += offset;
+        starts2[index] += offset;
+    }
+
+    void remove(int index) {
+        checkIndex(index);
+        int moved = size - index - 1;
+        System.arraycopy(operations, index + 1, operations, index, moved);
+        System.arraycopy(starts1, index + 1, starts1, index, moved);
+        System.arraycopy(starts2, index + 1, starts2, index, moved);
+        System.arraycopy(lengths, index + 1, lengths, index, moved);
+        size--;
+    }
+
+    /**
+     * Replaces the content of this list by the content of the given list of the same texts.
+     */
+    void replaceWith(@NotNull DiffList other) {
+        operations = other.operations;
+        starts1 = other.starts1;
+        starts2 = other.starts2;
+        lengths = other.lengths;
+        size = other.size;
+    }
+
+    /**
+     * @return position in the first text right after the last operation
+     */
+    int end1() {
+        return size == 0 ? 0 : end1(size - 1);
+    }
+
+    /**
+     * @return position in the second text right after the last operation
+     */
+    int end2() {
+        return size == 0 ? 0 : end2(size - 1);
+    }
+
+    int end1(int index) {
+        return operations[index] == DiffOperation.INSERT.ordinal() ? starts1[index] : starts1[index] + lengths[index];
+    }
+
+    int end2(int index) {
+        return operations[index] == DiffOperation.DELETE.ordinal() ? starts2[index] : starts2[index] + lengths[index];
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > operations.length) {
+            int newCapacity = Math.max(capacity, operations.length + (operations.length >> 1));
+            operations = Arrays.copyOf(operations, newCapacity);
+            starts1 = Arrays.copyOf(starts1, newCapacity);
+            starts2 = Arrays.copyOf(starts2, newCapacity);
+            lengths = Arrays.copyOf(lengths, newCapacity);
+        }
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder("[");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                result.append(", ");
+            }
+            result.append("Diff(").append(getOperation(i)).append(",\"").append(getText(i).replace('\n', '\u00b6')).append("\")");
+        }
+        return result.append(']').toString();
+    }
+
+}
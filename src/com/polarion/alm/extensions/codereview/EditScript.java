@@ -0,0 +1,151 @@
+/*
+ * Copyright 2016 Polarion AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.polarion.alm.extensions.codereview;
+
+import java.util.Arrays;
+
+import org.jetbrains.annotations.NotNull;
+
+import com.polarion.alm.extensions.codereview.TextDiffMatchPatch.DiffOperation;
+
+/**
+ * Sequence of diff operations counted in tokens (lines, words...) rather than characters. Operations are kept in
+ * merged form: adjacent operations of the same kind are joined and between two equalities all deletions come before
+ * all insertions.
+ */
+final class EditScript {
+
+    private static final DiffOperation[] OPERATIONS = DiffOperation.values();
+
+    private byte[] operations = new byte[16];
+    private int[] lengths = new int[16];
+    private int size;
+
+    private int pendingDeletes;
+    private int pendingInserts;
+
+    void equal(int length) {
+        if (length == 0) {
+            return;
+        }
+        flush();
+        add(DiffOperation.EQUAL, length);
+    }
+
+    void delete(int length) {
+        pendingDeletes += length;
+    }
+
+    void insert(int length) {
+        pendingInserts += length;
+    }
+
+    void append(@NotNull EditScript other) {
+        for (int i = 0; i < other.size; i++) {
+            switch (OPERATIONS[other.operations[i]]) {
+            case EQUAL:
+                equal(other.lengths[i]);
+                break;
+            case DELETE:
+                delete(other.lengths[i]);
+                break;
+            case INSERT:
+                insert(other.lengths[i]);
+                break;
+            }
+        }
+        delete(other.pendingDeletes);
+        insert(other.pendingInserts);
+    }
+
+    int size() {
+        flush();
+        return size;
+    }
+
+    @NotNull
+    DiffOperation getOperation(int index) {
+        flush();
+        return OPERATIONS[operations[index]];
+    }
+
+    int getLength(int index) {
+        flush();
+        return lengths[index];
+    }
+
+    /**
+     * Converts the token counts into character ranges of the compared texts. Each operation starts at the bounds of
+     * its tokens in both texts, so equal tokens may differ in length (e.g. in their line ends), equalities get the
+     * length of their range in the first text.
+     *
+     * @param bounds1 start positions of the tokens of the first text followed by the end position of the last token
+     * @param bounds2 start positions of the tokens of the second text followed by the end position of the last token
+     */
+    @NotNull
+    DiffList toDiffList(@NotNull String text1, @NotNull int[] bounds1, @NotNull String text2, @NotNull int[] bounds2) {
+        flush();
+        DiffList result = new DiffList(text1, text2, size);
+        int token1 = 0;
+        int token2 = 0;
+        for (int i = 0; i < size; i++) {
+            int length = lengths[i];
+            switch (OPERATIONS[operations[i]]) {
+            case EQUAL:
+                result.add(DiffOperation.EQUAL, bounds1[token1], bounds2[token2], bounds1[token1 + length] - bounds1[token1]);
+                token1 += length;
+                token2 += length;
+                break;
+            case DELETE:
+                result.add(DiffOperation.DELETE, bounds1[token1], bounds2[token2], bounds1[token1 + length] - bounds1[token1]);
+                token1 += length;
+                break;
+            case INSERT:
+                result.add(DiffOperation.INSERT, bounds1[token1], bounds2[token2], bounds2[token2 + length] - bounds2[token2]);
+                token2 += length;
+                break;
+            }
+        }
+        return result;
+    }
+
+    private void flush() {
+        if (pendingDeletes > 0) {
+            add(DiffOperation.DELETE, pendingDeletes);
+            pendingDeletes = 0;
+        }
+        if (pendingInserts > 0) {
+            add(DiffOperation.INSERT, pendingInserts);
+            pendingInserts = 0;
+        }
+    }
+
+    private void add(@NotNull DiffOperation operation, int length) {
+        if (size > 0 && operations[size - 1] == operation.ordinal()) {
+            lengths[size - 1] += length;
+            return;
+        }
+        if (size == operations.length) {
+            int newCapacity = size + (size >> 1);
+            operations = Arrays.copyOf(operations, newCapacity);
+            lengths = Arrays.copyOf(lengths, newCapacity);
+        }
+        operations[size] = (byte) operation.ordinal();
+        lengths[size] = length;
+        size++;
+    }
+
+}
@@ -15,35 +15,130 @@
  */
 package com.polarion.alm.extensions.codereview;
 
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
-import com.polarion.alm.extensions.codereview.TextDiffMatchPatch.Diff;
+import com.polarion.alm.extensions.codereview.TextDiffMatchPatch.DiffOperation;
+import com.polarion.alm.extensions.codereview.TextDiffMatchPatch.LineDiffAlgorithm;
+import com.polarion.alm.extensions.codereview.TextDiffMatchPatch.LineWhitespace;
 import com.polarion.alm.shared.api.utils.html.HtmlContentBuilder;
 import com.polarion.alm.shared.api.utils.html.HtmlTagBuilder;
+import com.polarion.alm.shared.api.utils.links.HtmlLink;
+import com.polarion.alm.shared.api.utils.links.HtmlLinkFactory;
 import com.polarion.platform.service.repository.IRepositoryReadOnlyConnection;
 import com.polarion.subterra.base.location.ILocation;
 
 @SuppressWarnings("nls")
 public class FileCompareRenderer {
 
+    /**
+     * Size (in lines) from which the halves of a diff are computed in parallel, 0 disables parallel diffs.
+     */
+    private static final int DIFF_FORK_THRESHOLD = Integer.getInteger("codereview.diffForkThreshold", 2000);
+
+    /**
+     * Combined size (in characters) of two files from which they are diffed in independent chunks between unique common
+     * lines, 0 disables the chunking.
+     */
+    private static final int LARGE_FILE_THRESHOLD = Integer.getInteger("codereview.largeFileThreshold", 2 * 1024 * 1024);
+
+    /**
+     * Maximum time (in seconds) of a line diff.
+     */
+    private static final float DIFF_TIMEOUT = 1.0f;
+
+    private static final String INSERT_STYLE = "background:#e6ffe6;";
+    private static final String DELETE_STYLE = "background:#ffe6e6;";
+
+    /**
+     * Maximum size (in characters) of a pair of deleted and inserted blocks whose changed words are highlighted.
+     */
+    private static final int INTRA_LINE_MAX_CHARS = Integer.getInteger("codereview.intraLineMaxChars", 10000);
+
     @NotNull
     private final IRepositoryReadOnlyConnection connection;
     @NotNull
     private final HtmlContentBuilder builder;
+    @NotNull
+    private final LineDiffAlgorithm diffAlgorithm;
+    @NotNull
+    private final LineWhitespace whitespace;
+    @NotNull
+    private final DiffBudget budget;
 
     public FileCompareRenderer(@NotNull IRepositoryReadOnlyConnection connection, @NotNull HtmlContentBuilder builder) {
+        this(connection, builder, LineDiffAlgorithm.MYERS, LineWhitespace.EXACT, DiffBudget.forSingleFile());
+    }
+
+    /**
+     * @param whitespace whitespace ignored when comparing lines, the lines are rendered as in the second file
+     * @param budget work which may be spent on the diffs, shared by all files of the request
+     */
+    FileCompareRenderer(@NotNull IRepositoryReadOnlyConnection connection, @NotNull HtmlContentBuilder builder, @NotNull LineDiffAlgorithm diffAlgorithm, @NotNull LineWhitespace whitespace,
+            @NotNull DiffBudget budget) {
         this.connection = connection;
         this.builder = builder;
+        this.diffAlgorithm = diffAlgorithm;
+        this.whitespace = whitespace;
+        this.budget = budget;
     }
 
     public void append(@NotNull ILocation first, @NotNull ILocation second) {
+        append(first, second, Collections.emptyList());
+    }
+
+    /**
+     * Renders the net change of several revisions of a file. The diff is composed of the diffs of the revisions when
+     * they are cached, together with the contents between them, otherwise the files are diffed directly.
+     *
+     * @param first the file before the first of the revisions
+     * @param modifications the file after each of the revisions, the last one is the second file
+     */
+    public void append(@NotNull ILocation first, @NotNull ILocation second, @NotNull List<ILocation> modifications) {
+        HtmlTagBuilder compareContainer = builder.tag().div();
+        if (budget.isExhausted()) {
+            appendSkipped(compareContainer, first, second, null);
+            return;
+        }
         String firstContent = CodeReviewServlet.getStringContent(connection, first);
         String secondContent = CodeReviewServlet.getStringContent(connection, second);
-        HtmlTagBuilder compareContainer = builder.tag().div();
+        if (!budget.tryAcquire((long) firstContent.length() + secondContent.length())) {
+            appendSkipped(compareContainer, first, second, countChangedLines(firstContent, secondContent, whitespace));
+            return;
+        }
         compareContainer.attributes().className("cr_file_content cr_file_content_modify");
-        String compareFiles = compareFiles(firstContent, secondContent);
+        DiffCache cache = DiffCache.getInstance();
+        String cacheKey = cache != null ? DiffCache.createKey(first, second, diffAlgorithm, whitespace) : null;
+        DiffList diffs = cacheKey != null ? cache.load(cacheKey, firstContent, secondContent) : null;
+        // a composed diff just approximates the direct one, so it is stored under a key of its own
+        String composedKey = cacheKey != null && modifications.size() > 1 ? cacheKey + ":composed" : null;
+        if (diffs == null && composedKey != null) {
+            diffs = cache.load(composedKey, firstContent, secondContent);
+        }
+        if (diffs == null) {
+            float timeout = getDiffTimeout(budget);
+            long start = System.nanoTime();
+            DiffList composed = composedKey != null ? composeDiffs(cache, first, firstContent, second, secondContent, modifications) : null;
+            if (composed != null) {
+                diffs = DiffComposition.refine(composed, (block1, block2) -> diffLines(block1, block2, diffAlgorithm, whitespace, timeout));
+            } else {
+                diffs = diffLines(firstContent, secondContent, diffAlgorithm, whitespace, timeout);
+            }
+            long elapsed = System.nanoTime() - start;
+            budget.consumeSince(start);
+            // a diff which reached its timeout may be coarser than it should be
+            if (cacheKey != null && elapsed < timeout * 1e9) {
+                cache.store(composed != null ? composedKey : cacheKey, diffs);
+            }
+        }
+        String compareFiles = render(diffs, budget);
 
         HtmlTagBuilder pre = compareContainer.append().tag().pre();
         HtmlTagBuilder code = pre.append().tag().byName("code");
@@ -51,32 +146,274 @@ public class FileCompareRenderer {
         code.append().html(compareFiles);
     }
 
-    private String compareFiles(@NotNull String first, @NotNull String second) {
-        TextDiffMatchPatch textDiffMatchPatch = new TextDiffMatchPatch();
+    /**
+     * @return the composed diffs of the modifications, {@code null} if one of them or one of the contents between them
+     *         isn't cached
+     */
+    @Nullable
+    private DiffList composeDiffs(@NotNull DiffCache cache, @NotNull ILocation first, @NotNull String firstContent, @NotNull ILocation second, @NotNull String secondContent,
+            @NotNull List<ILocation> modifications) {
+        if (!modifications.get(modifications.size() - 1).equals(second)) {
+            return null;
+        }
+        DiffList composed = null;
+        String previousContent = firstContent;
+        for (int i = 0; i < modifications.size(); i++) {
+            ILocation to = modifications.get(i);
+            ILocation from = i == 0 ? first : CodeReviewServlet.getPreviousState(to);
+            String fromContent = i == 0 ? firstContent : FileContentCache.getInstance().peek(from);
+            String toContent = i == modifications.size() - 1 ? secondContent : FileContentCache.getInstance().peek(to);
+            // a revision outside of the review may have changed the file in between
+            if (fromContent == null || toContent == null || !fromContent.equals(previousContent)) {
+                return null;
+            }
+            String key = DiffCache.createKey(from, to, diffAlgorithm, whitespace);
+            DiffList diffs = key != null ? cache.load(key, fromContent, toContent) : null;
+            if (diffs == null) {
+                return null;
+            }
+            composed = composed == null ? diffs : DiffComposition.compose(composed, diffs);
+            previousContent = toContent;
+        }
+        return composed;
+    }
+
+    /**
+     * Renders a summary of the change with a link to its full diff instead of the diff itself.
+     *
+     * @param changedLines numbers of removed and added lines, {@code null} if they are not known
+     */
+    private void appendSkipped(@NotNull HtmlTagBuilder container, @NotNull ILocation first, @NotNull ILocation second, @Nullable int[] changedLines) {
+        container.attributes().className("cr_diff_skipped");
+        HtmlContentBuilder content = container.append();
+        content.text("The review is too large to show all changes at once. ");
+        if (changedLines != null) {
+            content.text("About -" + changedLines[0] + " +" + changedLines[1] + " lines. ");
+        }
+        HtmlTagBuilder link = content.tag().a();
+        link.attributes().href(createCompareLink(first, second, diffAlgorithm, whitespace));
+        link.attributes().target("_blank");
+        link.append().text("Load full diff");
+    }
+
+    /**
+     * @return link to the page comparing the given revisions of the file, the path of the second location is used
+     */
+    @NotNull
+    static HtmlLink createCompareLink(@NotNull ILocation first, @NotNull ILocation second, @NotNull LineDiffAlgorithm diffAlgorithm, @NotNull LineWhitespace whitespace) {
+        return HtmlLinkFactory.fromEncodedRelativeUrl("/polarion/codereview/compare/" + encodePath(second.getLocationPath())
+                + "?revision=" + first.getRevision() + "&revision2=" + second.getRevision()
+                + "&" + Parameters.PARAM_DIFF_ALGORITHM + "=" + diffAlgorithm.name().toLowerCase(Locale.ENGLISH)
+                + "&" + Parameters.PARAM_WHITESPACE + "=" + whitespace.name().toLowerCase(Locale.ENGLISH));
+    }
+
+    @NotNull
+    private static String encodePath(@NotNull String path) {
+        StringBuilder result = new StringBuilder();
+        for (String segment : path.split("/")) {
+            if (!segment.isEmpty()) {
+                if (result.length() > 0) {
+                    result.append('/');
+                }
+                try {
+                    result.append(URLEncoder.encode(segment, StandardCharsets.UTF_8.name()).replace("+", "%20"));
+                } catch (UnsupportedEncodingException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * Counts the changed lines without diffing the texts, lines which were only moved are not counted.
+     *
+     * @return numbers of removed and added lines
+     */
+    @NotNull
+    static int[] countChangedLines(@NotNull String first, @NotNull String second, @NotNull LineWhitespace whitespace) {
+        TokenTable table = new TokenTable((first.length() + second.length()) / 64, LineTokens.ignoring(whitespace));
+        int[] firstLines = LineTokens.tokenize(first, table, true, whitespace).getTokens();
+        int[] secondLines = LineTokens.tokenize(second, table, true, whitespace).getTokens();
+        int[] counts = new int[table.size()];
+        for (int line : firstLines) {
+            counts[line]++;
+        }
+        int added = 0;
+        for (int line : secondLines) {
+            if (counts[line] > 0) {
+                counts[line]--;
+            } else {
+                added++;
+            }
+        }
+        return new int[] { firstLines.length - secondLines.length + added, added };
+    }
+
+    /**
+     * @return the HTML of the compared files with the changes highlighted
+     */
+    @NotNull
+    static String compareFiles(@NotNull String first, @NotNull String second, @NotNull LineDiffAlgorithm diffAlgorithm, @NotNull LineWhitespace whitespace, @NotNull DiffBudget budget) {
+        long start = System.nanoTime();
+        DiffList diffs = diffLines(first, second, diffAlgorithm, whitespace, getDiffTimeout(budget));
+        budget.consumeSince(start);
+        return render(diffs, budget);
+    }
 
-        first = first.replace("\n", "\r\n").replace("\r\r", "\r");
-        second = second.replace("\n", "\r\n").replace("\r\r", "\r");
+    /**
+     * @return timeout (in seconds) of a line diff, a diff which runs out of the budget degrades to a coarser one
+     */
+    private static float getDiffTimeout(@NotNull DiffBudget budget) {
+        return Math.min(DIFF_TIMEOUT, Math.max(budget.getRemainingMillis(), 1) / 1000f);
+    }
+
+    @NotNull
+    private static DiffList diffLines(@NotNull String first, @NotNull String second, @NotNull LineDiffAlgorithm diffAlgorithm, @NotNull LineWhitespace whitespace, float timeout) {
+        TextDiffMatchPatch textDiffMatchPatch = new TextDiffMatchPatch();
+        textDiffMatchPatch.setLineDiffAlgorithm(diffAlgorithm);
+        textDiffMatchPatch.setDiffForkThreshold(DIFF_FORK_THRESHOLD);
+        textDiffMatchPatch.setLargeFileThreshold(LARGE_FILE_THRESHOLD);
+        // \r\n, \r and \n line ends are treated as equal
+        textDiffMatchPatch.setDiffIgnoreLineEnds(true);
+        textDiffMatchPatch.setDiffLineWhitespace(whitespace);
+        textDiffMatchPatch.setDiffTimeout(timeout);
+        return textDiffMatchPatch.diffMainAtLineLevelCompact(first, second);
+    }
 
-        List<Diff> diffs = textDiffMatchPatch.diffMainAtLineLevel(first, second);
-        StringBuilder html = new StringBuilder();
-        for (Diff aDiff : diffs) {
-            String text = aDiff.getText();
-            text = CodeReviewServlet.escapeHTML(text).replace("\r", "\n");
-            switch (aDiff.getOperation()) {
+    /**
+     * @return the HTML of the diffed files with the changes highlighted
+     */
+    @NotNull
+    private static String render(@NotNull DiffList diffs, @NotNull DiffBudget budget) {
+        String second = diffs.getText2();
+        StringBuilder html = new StringBuilder(Math.max(diffs.getText1().length(), second.length()) + 1024);
+        for (int i = 0; i < diffs.size(); i++) {
+            switch (diffs.getOperation(i)) {
             case INSERT:
-                html.append("<span class=\"change\" style=\"background:#e6ffe6;\">").append(text)
-                        .append("</span>");
+                appendBlock(html, INSERT_STYLE, diffs.getSegment(i));
                 break;
             case DELETE:
-                html.append("<span class=\"change\" style=\"background:#ffe6e6;\">").append(text)
-                        .append("</span>");
+                if (i + 1 < diffs.size() && diffs.getOperation(i + 1) == DiffOperation.INSERT
+                        && appendChangedWords(html, diffs.getSegment(i), diffs.getSegment(i + 1), budget)) {
+                    i++;
+                } else {
+                    appendBlock(html, DELETE_STYLE, diffs.getSegment(i));
+                }
                 break;
             case EQUAL:
-                html.append(text);
+                // equal lines may differ in their whitespace, the new one is shown
+                int end = i + 1 < diffs.size() ? diffs.getStart2(i + 1) : second.length();
+                appendEscaped(html, new TextSegment(second, diffs.getStart2(i), end));
                 break;
             }
         }
         return html.toString();
     }
 
+    /**
+     * Renders a deleted block followed by the inserted block replacing it with their changed words highlighted.
+     *
+     * @return {@code false} if the blocks are too large or the budget is spent, nothing is rendered then
+     */
+    private static boolean appendChangedWords(@NotNull StringBuilder html, @NotNull TextSegment deleted, @NotNull TextSegment inserted, @NotNull DiffBudget budget) {
+        if (deleted.length() + inserted.length() > INTRA_LINE_MAX_CHARS || budget.isIntraLineExhausted()) {
+            return false;
+        }
+        long start = System.nanoTime();
+        TextDiffMatchPatch textDiffMatchPatch = new TextDiffMatchPatch();
+        textDiffMatchPatch.setDiffTimeout(Math.max(budget.getIntraLineRemainingMillis(), 1) / 1000f);
+        DiffList words = textDiffMatchPatch.diffMainAtWordLevelCompact(toUnixLineEnds(deleted), toUnixLineEnds(inserted));
+        budget.consumeIntraLineSince(start);
+
+        boolean common = false;
+        for (int i = 0; i < words.size() && !common; i++) {
+            common = words.getOperation(i) == DiffOperation.EQUAL && !words.getSegment(i).isBlank();
+        }
+        if (!common) {
+            // completely rewritten lines, highlighting all their words would just add noise
+            return false;
+        }
+        appendBlock(html, DELETE_STYLE, words, DiffOperation.DELETE, "cr_word_removed");
+        appendBlock(html, INSERT_STYLE, words, DiffOperation.INSERT, "cr_word_added");
+        return true;
+    }
+
+    /**
+     * Copies the text with its {@code \r\n} and {@code \r} line ends replaced by {@code \n}.
+     */
+    @NotNull
+    private static String toUnixLineEnds(@NotNull TextSegment text) {
+        String source = text.getSource();
+        int end = text.getEnd();
+        StringBuilder result = new StringBuilder(text.length());
+        for (int i = text.getStart(); i < end; i++) {
+            char c = source.charAt(i);
+            if (c != '\r') {
+                result.append(c);
+            } else if (i + 1 == end || source.charAt(i + 1) != '\n') {
+                // a \n after the end of the segment isn't copied, so the \r ends the line
+                result.append('\n');
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * Renders one side of a word diff, the words of the given operation are highlighted.
+     */
+    private static void appendBlock(@NotNull StringBuilder html, @NotNull String style, @NotNull DiffList words, @NotNull DiffOperation operation, @NotNull String wordClass) {
+        // the nested spans don't use the "change" class, navigation stops at the whole block only
+        html.append("<span class=\"change\" style=\"").append(style).append("\">");
+        for (int i = 0; i < words.size(); i++) {
+            DiffOperation wordOperation = words.getOperation(i);
+            if (wordOperation == DiffOperation.EQUAL) {
+                appendEscaped(html, words.getSegment(i));
+            } else if (wordOperation == operation) {
+                html.append("<span class=\"").append(wordClass).append("\">");
+                appendEscaped(html, words.getSegment(i));
+                html.append("</span>");
+            }
+        }
+        html.append("</span>");
+    }
+
+    private static void appendBlock(@NotNull StringBuilder html, @NotNull String style, @NotNull TextSegment text) {
+        html.append("<span class=\"change\" style=\"").append(style).append("\">");
+        appendEscaped(html, text);
+        html.append("</span>");
+    }
+
+    /**
+     * Escapes the text for HTML directly from its source, {@code \r\n} and {@code \r} line ends are rendered as {@code \n}.
+     */
+    private static void appendEscaped(@NotNull StringBuilder html, @NotNull TextSegment text) {
+        String source = text.getSource();
+        int end = text.getEnd();
+        int start = text.getStart();
+        for (int i = start; i < end; i++) {
+            String replacement;
+            switch (source.charAt(i)) {
+            case '&':
+                replacement = "&amp;";
+                break;
+            case '<':
+                replacement = "&lt;";
+                break;
+            case '>':
+                replacement = "&gt;";
+                break;
+            case '\r':
+                // the \n of a \r\n pair may already belong to the next segment
+                replacement = i + 1 < source.length() && source.charAt(i + 1) == '\n' ? "" : "\n";
+                break;
+            default:
+                continue;
+            }
+            html.append(source, start, i).append(replacement);
+            start = i + 1;
+        }
+        html.append(source, start, end);
+    }
+
 }
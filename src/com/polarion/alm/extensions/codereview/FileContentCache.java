@@ -0,0 +1,141 @@
+/*
+ * Copyright 2016 Polarion AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.polarion.alm.extensions.codereview;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import com.polarion.subterra.base.location.ILocation;
+
+/**
+ * Process-wide cache of decoded file contents. A file at a fixed revision never changes, so its content is kept until
+ * the cache grows over its size and the least recently used contents are evicted. Locations without a numeric revision
+ * are not cached.
+ */
+@SuppressWarnings("nls")
+final class FileContentCache {
+
+    /**
+     * Maximum size (in bytes) of the cached contents, 0 disables the cache.
+     */
+    private static final long MAX_BYTES = Long.getLong("codereview.contentCacheSize", 64L * 1024 * 1024);
+
+    /**
+     * Approximate size (in bytes) of an entry besides the characters of its content.
+     */
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private static final FileContentCache INSTANCE = new FileContentCache(MAX_BYTES);
+
+    private final long maxBytes;
+    @NotNull
+    private final LinkedHashMap<String, String> contents = new LinkedHashMap<>(64, 0.75f, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    FileContentCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    @NotNull
+    static FileContentCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param loader reads the content, it is called without holding the cache, a {@code null} content is not cached
+     * @return the cached content of the location, or the loaded one
+     */
+    @Nullable
+    String get(@NotNull ILocation location, @NotNull Supplier<String> loader) {
+        String key = createKey(location);
+        if (key == null || maxBytes <= 0) {
+            return loader.get();
+        }
+        synchronized (this) {
+            String content = contents.get(key);
+            if (content != null) {
+                hits++;
+                return content;
+            }
+            misses++;
+        }
+        String content = loader.get();
+        if (content != null) {
+            put(key, content);
+        }
+        return content;
+    }
+
+    /**
+     * @return the cached content of the location, {@code null} if it isn't cached
+     */
+    @Nullable
+    String peek(@NotNull ILocation location) {
+        String key = createKey(location);
+        if (key == null) {
+            return null;
+        }
+        synchronized (this) {
+            return contents.get(key);
+        }
+    }
+
+    private synchronized void put(@NotNull String key, @NotNull String content) {
+        long size = sizeOf(content);
+        if (size > maxBytes / 8) {
+            // a single huge file would evict most of the other ones
+            return;
+        }
+        String previous = contents.put(key, content);
+        if (previous != null) {
+            bytes -= sizeOf(previous);
+        }
+        bytes += size;
+        Iterator<Map.Entry<String, String>> iterator = contents.entrySet().iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+            bytes -= sizeOf(iterator.next().getValue());
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    @Nullable
+    private static String createKey(@NotNull ILocation location) {
+        String revision = location.getRevision();
+        if (revision == null || revision.isEmpty() || !revision.chars().allMatch(Character::isDigit)) {
+            return null;
+        }
+        return location.getRepositoryName() + ":" + location.getLocationPath() + "@" + revision;
+    }
+
+    private static long sizeOf(@NotNull String content) {
+        return 2L * content.length() + ENTRY_OVERHEAD;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "FileContentCache[" + contents.size() + " files, " + bytes + " of " + maxBytes + " bytes, " + hits + " hits, " + misses + " misses, " + evictions + " evictions]";
+    }
+
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2016 Polarion AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.polarion.alm.extensions.codereview;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Histogram diff of two sequences of token ids. The common region built around the token that occurs least often in
+ * the first sequence is taken as an anchor, the parts before and after it are diffed recursively. Regions whose common
+ * tokens all occur too often are passed to {@link SequenceDiff}.
+ */
+final class HistogramDiff implements RangeDiff {
+
+    /**
+     * Tokens occurring more often than this in a region are not used as anchors.
+     */
+    private static final int MAX_CHAIN_LENGTH = 64;
+
+    /**
+     * Deeper nesting of regions is left to {@link SequenceDiff} to keep the stack bounded.
+     */
+    private static final int MAX_DEPTH = 512;
+
+    private final long deadline;
+    private final boolean halfMatch;
+    private final int forkThreshold;
+
+    /**
+     * Number of occurrences of each token id in the currently indexed region of the first sequence.
+     */
+    private final @NotNull int[] counts;
+    /**
+     * First occurrence of each token id in the currently indexed region of the first sequence.
+     */
+    private final @NotNull int[] heads;
+    /**
+     * Next occurrence of the token at the given position of the first sequence, -1 if there is none.
+     */
+    private int[] next;
+
+    private int anchor1;
+    private int anchor2;
+    private int anchorLength;
+    private boolean commonTokens;
+
+    /**
+     * @param deadline time when the diff should be complete by
+     * @param halfMatch whether the half match speedup may be used for regions passed to {@link SequenceDiff}
+     * @param forkThreshold size from which {@link SequenceDiff} diffs the halves of a bisection in parallel
+     * @param tokenCount upper bound of the token ids
+     */
+    HistogramDiff(long deadline, boolean halfMatch, int forkThreshold, int tokenCount) {
+        this.deadline = deadline;
+        this.halfMatch = halfMatch;
+        this.forkThreshold = forkThreshold;
+        counts = new int[tokenCount];
+        heads = new int[tokenCount];
+    }
+
+    @NotNull
+    EditScript diff(@NotNull int[] tokens1, @NotNull int[] tokens2) {
+        EditScript script = new EditScript();
+        diff(tokens1, 0, tokens1.length, tokens2, 0, tokens2.length, script);
+        return script;
+    }
+
+    @Override
+    public void diff(@NotNull int[] tokens1, int start1, int end1, @NotNull int[] tokens2, int start2, int end2, @NotNull EditScript script) {
+        if (next == null || next.length < tokens1.length) {
+            next = new int[tokens1.length];
+        }
+        diff(tokens1, start1, end1, tokens2, start2, end2, script, 0);
+    }
+
+    private void diff(@NotNull int[] tokens1, int start1, int end1, @NotNull int[] tokens2, int start2, int end2, @NotNull EditScript script, int depth) {
+        int suffixes = 0;
+        // the part after the anchor is processed in the loop, only the part before it recurses
+        while (true) {
+            int prefix = SequenceDiff.commonPrefix(tokens1, start1, end1, tokens2, start2, end2);
+            script.equal(prefix);
+            start1 += prefix;
+            start2 += prefix;
+            int suffix = SequenceDiff.commonSuffix(tokens1, start1, end1, tokens2, start2, end2);
+            end1 -= suffix;
+            end2 -= suffix;
+            suffixes += suffix;
+
+            if (start1 == end1 || start2 == end2 || System.currentTimeMillis() > deadline) {
+                script.delete(end1 - start1);
+                script.insert(end2 - start2);
+                break;
+            }
+            if (depth > MAX_DEPTH || !findAnchor(tokens1, start1, end1, tokens2, start2, end2)) {
+                if (depth > MAX_DEPTH || commonTokens) {
+                    new SequenceDiff(deadline, halfMatch, forkThreshold).diff(tokens1, start1, end1, tokens2, start2, end2, script);
+                } else {
+                    // nothing in common
+                    script.delete(end1 - start1);
+                    script.insert(end2 - start2);
+                }
+                break;
+            }
+            // the fields are reused by the recursion
+            int regionStart1 = anchor1;
+            int regionStart2 = anchor2;
+            int regionLength = anchorLength;
+            diff(tokens1, start1, regionStart1, tokens2, start2, regionStart2, script, depth + 1);
+            script.equal(regionLength);
+            start1 = regionStart1 + regionLength;
+            start2 = regionStart2 + regionLength;
+        }
+        script.equal(suffixes);
+    }
+
+    /**
+     * Looks for the longest common region containing the tokens with the lowest number of occurrences in the first
+     * sequence.
+     *
+     * @return {@code true} if an anchor was found, stored in {@link #anchor1}, {@link #anchor2} and
+     *         {@link #anchorLength}; {@link #commonTokens} tells whether the regions have any token in common
+     */
+    private boolean findAnchor(@NotNull int[] tokens1, int start1, int end1, @NotNull int[] tokens2, int start2, int end2) {
+        for (int i = end1 - 1; i >= start1; i--) {
+            int token = tokens1[i];
+            next[i] = counts[token] == 0 ? -1 : heads[token];
+            heads[token] = i;
+            counts[token]++;
+        }
+
+        anchorLength = 0;
+        commonTokens = false;
+        int bestCount = MAX_CHAIN_LENGTH;
+        int i2 = start2;
+        while (i2 < end2) {
+            int count = counts[tokens2[i2]];
+            if (count == 0) {
+                i2++;
+                continue;
+            }
+            commonTokens = true;
+            if (count > bestCount) {
+                i2++;
+                continue;
+            }
+            int next2 = i2 + 1;
+            for (int i1 = heads[tokens2[i2]]; i1 != -1;) {
+                int regionCount = count;
+                int regionStart1 = i1;
+                int regionStart2 = i2;
+                while (regionStart1 > start1 && regionStart2 > start2 && tokens1[regionStart1 - 1] == tokens2[regionStart2 - 1]) {
+                    regionStart1--;
+                    regionStart2--;
+                    regionCount = Math.min(regionCount, counts[tokens1[regionStart1]]);
+                }
+                int regionEnd1 = i1 + 1;
+                int regionEnd2 = i2 + 1;
+                while (regionEnd1 < end1 && regionEnd2 < end2 && tokens1[regionEnd1] == tokens2[regionEnd2]) {
+                    regionCount = Math.min(regionCount, counts[tokens1[regionEnd1]]);
+                    regionEnd1++;
+                    regionEnd2++;
+                }
+                if (regionCount < bestCount || regionCount == bestCount && regionEnd1 - regionStart1 > anchorLength) {
+                    bestCount = regionCount;
+                    anchor1 = regionStart1;
+                    anchor2 = regionStart2;
+                    anchorLength = regionEnd1 - regionStart1;
+                }
+                next2 = Math.max(next2, regionEnd2);
+                // skip the occurrences covered by this region
+                do {
+                    i1 = next[i1];
+                } while (i1 != -1 && i1 < regionEnd1);
+            }
+            i2 = next2;
+        }
+
+        for (int i = start1; i < end1; i++) {
+            counts[tokens1[i]] = 0;
+        }
+        return anchorLength > 0;
+    }
+
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2016 Polarion AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.polarion.alm.extensions.codereview;
+
+import java.util.Arrays;
+
+import org.jetbrains.annotations.NotNull;
+
+import com.polarion.alm.extensions.codereview.TextDiffMatchPatch.LineWhitespace;
+
+/**
+ * Lines of a text reduced to token ids. Each line keeps its line end, so the bounds of consecutive lines cover the whole
+ * text. The lines are not copied, the {@link TokenTable} refers to them by range.
+ */
+final class LineTokens {
+
+    /**
+     * Lines are equal when they only differ in their line ends ({@code \n}, {@code \r\n} or {@code \r}), a line
+     * without line end (at the end of the text) is not equal to a line with one.
+     */
+    static final TokenTable.Equality IGNORING_LINE_ENDS = (text1, start1, end1, text2, start2, end2) -> {
+        int contentEnd1 = contentEnd(text1, start1, end1);
+        int contentEnd2 = contentEnd(text2, start2, end2);
+        return (contentEnd1 == end1) == (contentEnd2 == end2)
+                && TokenTable.EXACT.equal(text1, start1, contentEnd1, text2, start2, contentEnd2);
+    };
+
+    /**
+     * Lines are equal when they only differ in their indentation and line ends.
+     */
+    private static final TokenTable.Equality IGNORING_INDENTATION = (text1, start1, end1, text2, start2, end2) -> equalIgnoring(
+            LineWhitespace.IGNORE_INDENTATION, text1, start1, end1, text2, start2, end2);
+
+    /**
+     * Lines are equal when they only differ in their whitespace and line ends.
+     */
+    private static final TokenTable.Equality IGNORING_ALL_WHITESPACE = (text1, start1, end1, text2, start2, end2) -> equalIgnoring(
+            LineWhitespace.IGNORE_ALL, text1, start1, end1, text2, start2, end2);
+
+    private final @NotNull int[] tokens;
+    private final @NotNull int[] bounds;
+
+    private LineTokens(@NotNull int[] tokens, @NotNull int[] bounds) {
+        this.tokens = tokens;
+        this.bounds = bounds;
+    }
+
+    /**
+     * Splits the text into lines and assigns each distinct line an id. The lines are hashed while they are scanned.
+     *
+     * @param table ids of the lines seen so far, shared by all texts which are going to be compared
+     * @param anyLineEnd {@code true} if {@code \r\n} and {@code \r} end lines too and all line ends are hashed as
+     *            {@code \n} (to be used with {@link #ignoring(LineWhitespace)}), {@code false} if only {@code \n} ends
+     *            lines
+     * @param whitespace whitespace which is left out of the hashes
+     */
+    static @NotNull LineTokens tokenize(@NotNull String text, @NotNull TokenTable table, boolean anyLineEnd, @NotNull LineWhitespace whitespace) {
+        int length = text.length();
+        int[] tokens = new int[Math.max(16, length / 32)];
+        int count = 0;
+        int[] bounds = new int[tokens.length + 1];
+        int start = 0;
+        long hash = TokenTable.EMPTY_HASH;
+        boolean lineStart = true;
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            int end;
+            if (c == '\n') {
+                end = i + 1;
+            } else if (c == '\r' && anyLineEnd) {
+                end = i + 1 < length && text.charAt(i + 1) == '\n' ? i + 2 : i + 1;
+            } else {
+                if (!isIgnored(c, whitespace, lineStart)) {
+                    hash = TokenTable.hash(hash, c);
+                    lineStart = false;
+                }
+                continue;
+            }
+            hash = TokenTable.hash(hash, '\n');
+            if (count == tokens.length) {
+                tokens = Arrays.copyOf(tokens, count * 2);
+                bounds = Arrays.copyOf(bounds, count * 2 + 1);
+            }
+            bounds[count] = start;
+            tokens[count++] = table.intern(text, start, end, hash);
+            start = end;
+            i = end - 1;
+            hash = TokenTable.EMPTY_HASH;
+            lineStart = true;
+        }
+        if (start < length) {
+            tokens = Arrays.copyOf(tokens, count + 1);
+            bounds = Arrays.copyOf(bounds, count + 2);
+            bounds[count] = start;
+            tokens[count++] = table.intern(text, start, length, hash);
+        }
+        bounds[count] = length;
+        return new LineTokens(Arrays.copyOf(tokens, count), Arrays.copyOf(bounds, count + 1));
+    }
+
+    /**
+     * @return equality of lines matching the hashes of {@link #tokenize(String, TokenTable, boolean, LineWhitespace)}
+     *         with any line end and the given whitespace ignored
+     */
+    static @NotNull TokenTable.Equality ignoring(@NotNull LineWhitespace whitespace) {
+        switch (whitespace) {
+        case IGNORE_INDENTATION:
+            return IGNORING_INDENTATION;
+        case IGNORE_ALL:
+            return IGNORING_ALL_WHITESPACE;
+        default:
+            return IGNORING_LINE_ENDS;
+        }
+    }
+
+    private static boolean equalIgnoring(@NotNull LineWhitespace whitespace, @NotNull String text1, int start1, int end1, @NotNull String text2, int start2, int end2) {
+        int contentEnd1 = contentEnd(text1, start1, end1);
+        int contentEnd2 = contentEnd(text2, start2, end2);
+        if ((contentEnd1 == end1) != (contentEnd2 == end2)) {
+            return false;
+        }
+        int i1 = skipIgnored(text1, start1, contentEnd1, whitespace, true);
+        int i2 = skipIgnored(text2, start2, contentEnd2, whitespace, true);
+        while (i1 < contentEnd1 && i2 < contentEnd2) {
+            if (text1.charAt(i1) != text2.charAt(i2)) {
+                return false;
+            }
+            i1 = skipIgnored(text1, i1 + 1, contentEnd1, whitespace, false);
+            i2 = skipIgnored(text2, i2 + 1, contentEnd2, whitespace, false);
+        }
+        return i1 == contentEnd1 && i2 == contentEnd2;
+    }
+
+    private static int skipIgnored(@NotNull String text, int start, int end, @NotNull LineWhitespace whitespace, boolean lineStart) {
+        int i = start;
+        while (i < end && isIgnored(text.charAt(i), whitespace, lineStart)) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * @param lineStart {@code true} if only ignored characters precede the character in its line
+     */
+    private static boolean isIgnored(char c, @NotNull LineWhitespace whitespace, boolean lineStart) {
+        switch (whitespace) {
+        case IGNORE_INDENTATION:
+            return lineStart && (c == ' ' || c == '\t');
+        case IGNORE_ALL:
+            return Character.isWhitespace(c);
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * @return end of the given line without its line end
+     */
+    static int contentEnd(@NotNull String text, int start, int end) {
+        int contentEnd = end;
+        if (contentEnd > start && text.charAt(contentEnd - 1) == '\n') {
+            contentEnd--;
+        }
+        if (contentEnd > start && text.charAt(contentEnd - 1) == '\r') {
+            contentEnd--;
+        }
+        return contentEnd;
+    }
+
+    @NotNull
+    int[] getTokens() {
+        return tokens;
+    }
+
+    /**
+     * @return start positions of the lines followed by the length of the text
+     */
+    @NotNull
+    int[] getBounds() {
+        return bounds;
+    }
+
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2016 Polarion AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.polarion.alm.extensions.codereview;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import com.polarion.platform.persistence.model.IRevision;
+import com.polarion.platform.service.repository.ILocationChangeMetaData;
+import com.polarion.subterra.base.location.ILocation;
+
+/**
+ * Modifications and creations of the files of the reviewed revisions by their location without revision, built in one
+ * pass over the changes.
+ */
+final class LocationIndex {
+
+    private static final class Modifications {
+
+        @NotNull
+        private final List<ILocationChangeMetaData> all = new ArrayList<>(2);
+        private int lastRevision;
+
+        Modifications(@NotNull ILocationChangeMetaData first, int revision) {
+            all.add(first);
+            lastRevision = revision;
+        }
+
+    }
+
+    @NotNull
+    private final Map<ILocation, Modifications> modifications = new HashMap<>();
+    @NotNull
+    private final Map<ILocation, ILocationChangeMetaData> creations = new HashMap<>();
+
+    LocationIndex(@NotNull List<IRevision> revisions) {
+        for (IRevision revision : revisions) {
+            int revisionNumber = CodeReviewServlet.getRevision(revision);
+            for (ILocationChangeMetaData metaData : revision.getChangedLocations()) {
+                if (metaData.isModified()) {
+                    ILocation location = metaData.getChangeLocationTo().removeRevision();
+                    Modifications fileModifications = modifications.get(location);
+                    if (fileModifications == null) {
+                        modifications.put(location, new Modifications(metaData, revisionNumber));
+                    } else {
+                        fileModifications.all.add(metaData);
+                        fileModifications.lastRevision = Math.max(fileModifications.lastRevision, revisionNumber);
+                    }
+                } else if ((metaData.isCreated() || metaData.isCopied()) && !metaData.isRemoved()) {
+                    creations.merge(metaData.getChangeLocationTo().removeRevision(), metaData, (first, second) -> getRevision(first) <= getRevision(second) ? first : second);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} if the file of the change is modified by a revision newer than the given one
+     */
+    boolean isModifiedAfter(@NotNull ILocationChangeMetaData metaData, @NotNull IRevision revision) {
+        Modifications fileModifications = modifications.get(metaData.getChangeLocationTo().removeRevision());
+        return fileModifications != null && fileModifications.lastRevision > CodeReviewServlet.getRevision(revision);
+    }
+
+    /**
+     * @return the first modification of the file of the change in the order of the revisions, {@code null} if it is
+     *         not modified
+     */
+    @Nullable
+    ILocationChangeMetaData getFirstModification(@NotNull ILocationChangeMetaData metaData) {
+        Modifications fileModifications = modifications.get(metaData.getChangeLocationTo().removeRevision());
+        return fileModifications != null ? fileModifications.all.get(0) : null;
+    }
+
+    /**
+     * @return the modifications of the file of the change in the order of the revisions
+     */
+    @NotNull
+    List<ILocationChangeMetaData> getModifications(@NotNull ILocationChangeMetaData metaData) {
+        Modifications fileModifications = modifications.get(metaData.getChangeLocationTo().removeRevision());
+        return fileModifications != null ? Collections.unmodifiableList(fileModifications.all) : Collections.emptyList();
+    }
+
+    /**
+     * @return the creation of the file of the change by one of the revisions before its last modification (so the net
+     *         change is the creation of the file), {@code null} if there is none
+     */
+    @Nullable
+    ILocationChangeMetaData getCreationBeforeModified(@NotNull ILocationChangeMetaData metaData) {
+        ILocation location = metaData.getChangeLocationTo().removeRevision();
+        ILocationChangeMetaData creation = creations.get(location);
+        Modifications fileModifications = modifications.get(location);
+        return creation != null && fileModifications != null && getRevision(creation) < fileModifications.lastRevision ? creation : null;
+    }
+
+    private static int getRevision(@NotNull ILocationChangeMetaData metaData) {
+        return Integer.parseInt(metaData.getChangeLocationTo().getRevision());
+    }
+
+}
@@ -22,6 +22,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Properties;
@@ -32,6 +33,8 @@ import javax.servlet.http.HttpServletRequest;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import com.polarion.alm.extensions.codereview.TextDiffMatchPatch.LineDiffAlgorithm;
+import com.polarion.alm.extensions.codereview.TextDiffMatchPatch.LineWhitespace;
 import com.polarion.alm.shared.api.utils.links.HtmlLink;
 import com.polarion.alm.shared.api.utils.links.HtmlLinkFactory;
 import com.polarion.alm.tracker.model.IComment;
@@ -55,6 +58,9 @@ public class Parameters {
     private static final String PARAM_COMPARE_ALL = "compareAll";
     private static final String PARAM_WORKFLOW_ACTION = "workflowAction";
     private static final String PARAM_REVIEW_COMMENT = "reviewComment";
+    static final String PARAM_DIFF_ALGORITHM = "diffAlgorithm";
+    static final String PARAM_WHITESPACE = "whitespace";
+    private static final String PARAM_LAZY = "lazy";
 
     // configuration parameters
     private static final String CONFIG_LAST_REVIEWED_REVISION_FIELD = "lastReviewedRevisionField";
@@ -73,6 +79,7 @@ public class Parameters {
     private static final String CONFIG_REVIEW_COMMENT_TITLE = "reviewCommentTitle";
     private static final String CONFIG_SUCCESSFUL_REVIEW_COMMENT_TITLE = "successfulReviewCommentTitle";
     private static final String CONFIG_UNSUCCESSFUL_REVIEW_COMMENT_TITLE = "unsuccessfulReviewCommentTitle";
+    private static final String CONFIG_DIFF_ALGORITHM = "diffAlgorithm";
 
     public static enum WorkflowAction {
         successfulReview, unsuccessfulReview;
@@ -84,6 +91,9 @@ public class Parameters {
     private final boolean aggregatedCompare;
     private final boolean compareAll;
     private final @Nullable WorkflowAction workflowAction;
+    private final @Nullable LineDiffAlgorithm requestedDiffAlgorithm;
+    private final @NotNull LineWhitespace whitespace;
+    private final @Nullable Boolean lazy;
 
     private final @Nullable String lastReviewedRevisionField;
     private final @Nullable String reviewedRevisionsField;
@@ -102,14 +112,19 @@ public class Parameters {
     private final @Nullable String reviewerRole;
     private final @NotNull Collection<String> pastReviewers;
     private final boolean preventReviewConflicts;
+    private final @NotNull LineDiffAlgorithm diffAlgorithm;
 
-    private Parameters(@NotNull ParametersContext context, @NotNull IWorkItem workItem, boolean aggregatedCompare, boolean compareAll, @Nullable WorkflowAction workflowAction, @Nullable String commentText) {
+    private Parameters(@NotNull ParametersContext context, @NotNull IWorkItem workItem, boolean aggregatedCompare, boolean compareAll, @Nullable WorkflowAction workflowAction, @Nullable String commentText,
+            @Nullable LineDiffAlgorithm requestedDiffAlgorithm, @Nullable LineWhitespace whitespace, @Nullable Boolean lazy) {
         super();
         this.context = context;
         this.workItem = workItem;
         this.aggregatedCompare = aggregatedCompare;
         this.compareAll = compareAll;
         this.workflowAction = workflowAction;
+        this.requestedDiffAlgorithm = requestedDiffAlgorithm;
+        this.whitespace = whitespace != null ? whitespace : LineWhitespace.EXACT;
+        this.lazy = lazy;
         Properties configuration = context.loadConfiguration(workItem);
         lastReviewedRevisionField = configuration.getProperty(CONFIG_LAST_REVIEWED_REVISION_FIELD);
         reviewedRevisionsField = configuration.getProperty(CONFIG_REVIEWED_REVISIONS_FIELD);
@@ -138,6 +153,14 @@ public class Parameters {
             pastReviewers = Collections.EMPTY_SET;
         }
         preventReviewConflicts = Boolean.parseBoolean(configuration.getProperty(CONFIG_PREVENT_REVIEW_CONFLICTS));
+        LineDiffAlgorithm configuredDiffAlgorithm = parseDiffAlgorithm(configuration.getProperty(CONFIG_DIFF_ALGORITHM));
+        if (requestedDiffAlgorithm != null) {
+            diffAlgorithm = requestedDiffAlgorithm;
+        } else if (configuredDiffAlgorithm != null) {
+            diffAlgorithm = configuredDiffAlgorithm;
+        } else {
+            diffAlgorithm = LineDiffAlgorithm.MYERS;
+        }
     }
 
     private static @Nullable WorkflowAction parseWorkflowAction(@Nullable String s) {
@@ -147,13 +170,49 @@ public class Parameters {
         return WorkflowAction.valueOf(s);
     }
 
+    /**
+     * @return the algorithm of the given name (case insensitive), {@code null} if there is no such algorithm
+     */
+    static @Nullable LineDiffAlgorithm parseDiffAlgorithm(@Nullable String s) {
+        if (s == null) {
+            return null;
+        }
+        try {
+            return LineDiffAlgorithm.valueOf(s.trim().toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the whitespace mode of the given name (case insensitive), {@code null} if there is no such mode
+     */
+    static @Nullable LineWhitespace parseWhitespace(@Nullable String s) {
+        if (s == null) {
+            return null;
+        }
+        try {
+            return LineWhitespace.valueOf(s.trim().toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static @Nullable Boolean parseLazy(@Nullable String s) {
+        if (s == null) {
+            return null;
+        }
+        return Boolean.valueOf(s);
+    }
+
     public Parameters(@NotNull ParametersContext context, @NotNull HttpServletRequest request) {
         this(context, context.getWorkItem(request.getParameter(PARAM_PROJECT_ID), request.getParameter(PARAM_WORK_ITEM_ID)), Boolean.parseBoolean(request.getParameter(PARAM_AGGREGATED_COMPARE)),
-                Boolean.parseBoolean(request.getParameter(PARAM_COMPARE_ALL)), parseWorkflowAction(request.getParameter(PARAM_WORKFLOW_ACTION)), request.getParameter(PARAM_REVIEW_COMMENT));
+                Boolean.parseBoolean(request.getParameter(PARAM_COMPARE_ALL)), parseWorkflowAction(request.getParameter(PARAM_WORKFLOW_ACTION)), request.getParameter(PARAM_REVIEW_COMMENT),
+                parseDiffAlgorithm(request.getParameter(PARAM_DIFF_ALGORITHM)), parseWhitespace(request.getParameter(PARAM_WHITESPACE)), parseLazy(request.getParameter(PARAM_LAZY)));
     }
 
     public Parameters(@NotNull ParametersContext context, @NotNull IWorkItem workItem) {
-        this(context, workItem, false, false, null, null);
+        this(context, workItem, false, false, null, null, null, null, null);
     }
 
     public @NotNull IWorkItem getWorkItem() {
@@ -164,6 +223,28 @@ public class Parameters {
         return aggregatedCompare;
     }
 
+    /**
+     * @return the line diff algorithm given in the URL, or the one configured for the project
+     */
+    public @NotNull LineDiffAlgorithm getDiffAlgorithm() {
+        return diffAlgorithm;
+    }
+
+    /**
+     * @return the whitespace ignored when comparing lines, given in the URL
+     */
+    public @NotNull LineWhitespace getWhitespace() {
+        return whitespace;
+    }
+
+    /**
+     * @return whether the files are loaded when they are scrolled to, given in the URL, {@code null} if it depends on
+     *         the size of the review
+     */
+    public @Nullable Boolean getLazy() {
+        return lazy;
+    }
+
     public @Nullable Integer getLastReviewedRevision() {
         Object lastReviewedRevisionValue = lastReviewedRevisionField != null && !lastReviewedRevisionField.isEmpty() ? workItem.getValue(lastReviewedRevisionField) : null;
         Integer lastReviewedRevision = null;
@@ -188,12 +269,16 @@ public class Parameters {
         private boolean linkAggregatedCompare;
         private boolean linkCompareAll;
         private @Nullable WorkflowAction linkWorkflowAction;
+        private @NotNull LineWhitespace linkWhitespace;
+        private @Nullable Boolean linkLazy;
         private @NotNull List<SimpleEntry<String, String>> additionalParameters = new ArrayList<>();
 
         public Link() {
             linkAggregatedCompare = aggregatedCompare;
             linkCompareAll = compareAll;
             linkWorkflowAction = workflowAction;
+            linkWhitespace = whitespace;
+            linkLazy = lazy;
         }
 
         public @NotNull HtmlLink toHtmlLink() {
@@ -221,6 +306,24 @@ public class Parameters {
                 link.append("=");
                 link.append(linkWorkflowAction);
             }
+            if (requestedDiffAlgorithm != null) {
+                link.append("&");
+                link.append(PARAM_DIFF_ALGORITHM);
+                link.append("=");
+                link.append(requestedDiffAlgorithm.name().toLowerCase(Locale.ENGLISH));
+            }
+            if (linkWhitespace != LineWhitespace.EXACT) {
+                link.append("&");
+                link.append(PARAM_WHITESPACE);
+                link.append("=");
+                link.append(linkWhitespace.name().toLowerCase(Locale.ENGLISH));
+            }
+            if (linkLazy != null) {
+                link.append("&");
+                link.append(PARAM_LAZY);
+                link.append("=");
+                link.append(linkLazy);
+            }
             for (Map.Entry<String, String> additionalParameterEntry : additionalParameters) {
                 link.append("&");
                 link.append(additionalParameterEntry.getKey());
@@ -240,6 +343,16 @@ public class Parameters {
             return this;
         }
 
+        public @NotNull Link withWhitespace(@NotNull LineWhitespace whitespace) {
+            linkWhitespace = whitespace;
+            return this;
+        }
+
+        public @NotNull Link withLazy(@Nullable Boolean lazy) {
+            linkLazy = lazy;
+            return this;
+        }
+
         public @NotNull Link withWorkflowAction(@Nullable WorkflowAction workflowAction) {
             linkWorkflowAction = workflowAction;
             return this;
@@ -0,0 +1,30 @@
+/*
+ * Copyright 2016 Polarion AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.polarion.alm.extensions.codereview;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Diff algorithm working on index ranges of two sequences of token ids.
+ */
+interface RangeDiff {
+
+    /**
+     * Appends the diff of the given ranges of the sequences to the script.
+     */
+    void diff(@NotNull int[] tokens1, int start1, int end1, @NotNull int[] tokens2, int start2, int end2, @NotNull EditScript script);
+
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2016 Polarion AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.polarion.alm.extensions.codereview;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Renders the files of a page on a pool shared by all requests and writes them in their original order as soon as all
+ * files before them are written. The files rendered ahead are limited, so a slow client doesn't make the rendered
+ * files pile up in memory.
+ */
+@SuppressWarnings("nls")
+final class RenderExecutor {
+
+    /**
+     * Number of threads rendering files, 1 or less renders the files by the thread of the request.
+     */
+    private static final int THREADS = Integer.getInteger("codereview.renderThreads", Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Number of files of a request which may be rendered ahead of the file which is written.
+     */
+    private static final int WINDOW = Integer.getInteger("codereview.renderWindow", 2 * THREADS);
+
+    @Nullable
+    private static final ExecutorService EXECUTOR = THREADS > 1 ? createExecutor() : null;
+
+    @Nullable
+    private final ExecutorService executor;
+    @NotNull
+    private final Writer out;
+    @NotNull
+    private final BooleanSupplier cancelled;
+    @NotNull
+    private final Deque<Future<String>> pending = new ArrayDeque<>();
+
+    private RenderExecutor(@Nullable ExecutorService executor, @NotNull Writer out, @NotNull BooleanSupplier cancelled) {
+        this.executor = executor;
+        this.out = out;
+        this.cancelled = cancelled;
+    }
+
+    /**
+     * @param parallel {@code false} to render all files by the thread of the request
+     * @param cancelled tells whether the request has ended, then nothing is rendered or written anymore and a
+     *            {@link CancellationException} is thrown
+     */
+    @NotNull
+    static RenderExecutor forRequest(@NotNull Writer out, boolean parallel, @NotNull BooleanSupplier cancelled) {
+        return new RenderExecutor(parallel ? EXECUTOR : null, out, cancelled);
+    }
+
+    /**
+     * @return {@code true} if the files are rendered by other threads than the one of the request
+     */
+    boolean isParallel() {
+        return executor != null;
+    }
+
+    @NotNull
+    private static ExecutorService createExecutor() {
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, "codereview-render-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), threadFactory);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Writes a part of the page rendered by the thread of the request after the files before it.
+     */
+    void writeInline(@NotNull String html) throws IOException {
+        checkCancelled();
+        if (pending.isEmpty()) {
+            write(html);
+        } else {
+            pending.add(CompletableFuture.completedFuture(html));
+        }
+    }
+
+    /**
+     * @param renderer renders a file to HTML, it is called on another thread in parallel mode
+     */
+    void render(@NotNull Supplier<String> renderer) throws IOException {
+        checkCancelled();
+        if (executor == null) {
+            write(renderer.get());
+            return;
+        }
+        while (pending.size() >= Math.max(WINDOW, 1)) {
+            writeNext();
+        }
+        pending.add(executor.submit(renderer::get));
+        // the files which are already rendered are sent without waiting for the window to fill
+        while (!pending.isEmpty() && pending.peek().isDone()) {
+            writeNext();
+        }
+    }
+
+    /**
+     * Writes all remaining files.
+     */
+    void finish() throws IOException {
+        while (!pending.isEmpty()) {
+            writeNext();
+        }
+    }
+
+    /**
+     * Cancels the files which are not written yet, e.g. when the client is gone.
+     */
+    void cancel() {
+        for (Future<String> future : pending) {
+            future.cancel(false);
+        }
+        pending.clear();
+    }
+
+    private void writeNext() throws IOException {
+        Future<String> future = pending.remove();
+        try {
+            write(future.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while rendering the page", e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private void checkCancelled() {
+        if (cancelled.getAsBoolean()) {
+            throw new CancellationException("The request has ended");
+        }
+    }
+
+    private void write(@NotNull String html) throws IOException {
+        checkCancelled();
+        out.write(html);
+        out.flush();
+    }
+
+}
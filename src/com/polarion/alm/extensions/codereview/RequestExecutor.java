@@ -0,0 +1,214 @@
+/*
+ * Copyright 2016 Polarion AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.polarion.alm.extensions.codereview;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Serves expensive requests asynchronously on a pool of its own, so they don't hold the threads of the container which
+ * are shared by the whole server. Requests which find the pool and its queue full are rejected.
+ */
+@SuppressWarnings("nls")
+final class RequestExecutor {
+
+    private static final Logger logger = Logger.getLogger(RequestExecutor.class);
+
+    /**
+     * Number of requests served at once, 0 serves the requests by the threads of the container.
+     */
+    private static final int THREADS = Integer.getInteger("codereview.requestThreads", 4);
+
+    /**
+     * Number of requests waiting for a thread, further requests are rejected.
+     */
+    private static final int QUEUE_SIZE = Integer.getInteger("codereview.requestQueueSize", 16);
+
+    /**
+     * Maximum time (in milliseconds) of an asynchronous request, 0 for no limit.
+     */
+    private static final long TIMEOUT = Long.getLong("codereview.requestTimeout", 10 * 60 * 1000L);
+
+    /**
+     * Time (in seconds) after which the client should retry a rejected request.
+     */
+    static final int RETRY_AFTER = 10;
+
+    @Nullable
+    private static final ExecutorService EXECUTOR = THREADS > 0 ? createExecutor() : null;
+
+    private static final String CANCELLED_ATTRIBUTE = RequestExecutor.class.getName() + ".cancelled";
+
+    interface Handler {
+
+        void handle(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response) throws Exception;
+
+    }
+
+    /**
+     * Asynchronous request which the container may end before it is served, on a timeout or when the client is gone.
+     */
+    private static final class AsyncRequest implements AsyncListener {
+
+        @NotNull
+        private final AsyncContext asyncContext;
+        @NotNull
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+        @NotNull
+        private final AtomicBoolean completed = new AtomicBoolean();
+
+        AsyncRequest(@NotNull AsyncContext asyncContext) {
+            this.asyncContext = asyncContext;
+        }
+
+        /**
+         * Completes the request unless it is completed already.
+         */
+        void complete() {
+            if (completed.compareAndSet(false, true)) {
+                asyncContext.complete();
+            }
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            completed.set(true);
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            logger.warn("Code review request timed out");
+            cancelled.set(true);
+            complete();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            cancelled.set(true);
+            complete();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+
+    }
+
+    private RequestExecutor() {
+    }
+
+    @NotNull
+    private static ExecutorService createExecutor() {
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, "codereview-request-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(Math.max(QUEUE_SIZE, 1)), threadFactory);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Serves the request on the pool and releases the thread of the container right away. The request is served
+     * directly when the container doesn't support asynchronous requests.
+     */
+    static void execute(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response, @NotNull Handler handler) throws IOException {
+        if (EXECUTOR == null || !request.isAsyncSupported()) {
+            handle(request, response, handler);
+            return;
+        }
+        AsyncContext asyncContext = request.startAsync();
+        asyncContext.setTimeout(TIMEOUT);
+        AsyncRequest asyncRequest = new AsyncRequest(asyncContext);
+        asyncContext.addListener(asyncRequest);
+        request.setAttribute(CANCELLED_ATTRIBUTE, asyncRequest.cancelled);
+        try {
+            EXECUTOR.execute(() -> {
+                try {
+                    handle(request, response, handler);
+                } finally {
+                    asyncRequest.complete();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logger.warn("Too many code review requests, rejected " + request.getRequestURI());
+            sendBusy(response);
+            asyncRequest.complete();
+        }
+    }
+
+    /**
+     * @return tells whether the container has ended the request before it was served, so it should be abandoned
+     */
+    @NotNull
+    static BooleanSupplier getCancellation(@NotNull HttpServletRequest request) {
+        Object cancelled = request.getAttribute(CANCELLED_ATTRIBUTE);
+        return cancelled instanceof AtomicBoolean ? ((AtomicBoolean) cancelled)::get : () -> false;
+    }
+
+    /**
+     * Answers that the server is too busy to serve the request now.
+     */
+    static void sendBusy(@NotNull HttpServletResponse response) throws IOException {
+        response.setHeader("Retry-After", String.valueOf(RETRY_AFTER));
+        response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many code reviews are being shown, please try again later.");
+    }
+
+    /**
+     * Answers with a page which reloads itself when the server may be less busy.
+     */
+    static void sendBusyPage(@NotNull HttpServletResponse response) throws IOException {
+        response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        response.setHeader("Retry-After", String.valueOf(RETRY_AFTER));
+        response.setContentType("text/html");
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        try (Writer out = response.getWriter()) {
+            out.write("<!DOCTYPE html><html><head><meta http-equiv=\"refresh\" content=\"" + RETRY_AFTER + "\"><title>Code Review</title></head><body>"
+                    + "<p>Too many code reviews are being shown, the review is shown again in " + RETRY_AFTER + " seconds.</p></body></html>");
+        }
+    }
+
+    private static void handle(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response, @NotNull Handler handler) {
+        try {
+            handler.handle(request, response);
+        } catch (Exception e) {
+            logger.error(e.getMessage(), e);
+        }
+    }
+
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2016 Polarion AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.polarion.alm.extensions.codereview;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Compresses responses with gzip for clients which accept it.
+ */
+@SuppressWarnings("nls")
+final class ResponseCompression {
+
+    /**
+     * Minimum size (in bytes) of a resource to be compressed, pages are always compressed.
+     */
+    private static final int MIN_SIZE = Integer.getInteger("codereview.compressionMinSize", 1024);
+
+    /**
+     * Deflate level from 1 (fastest) to 9 (smallest), 0 disables the compression.
+     */
+    private static final int LEVEL = Integer.getInteger("codereview.compressionLevel", 6);
+
+    private ResponseCompression() {
+    }
+
+    /**
+     * Opens the response for content which is sent while it is generated. Flushing the returned stream sends all
+     * content written so far.
+     */
+    @NotNull
+    static OutputStream open(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response) throws IOException {
+        response.addHeader("Vary", "Accept-Encoding");
+        return acceptsGzip(request) ? compress(response) : response.getOutputStream();
+    }
+
+    /**
+     * @return the gzipped content, {@code null} if it is smaller than the threshold or the compression is disabled
+     */
+    @Nullable
+    static byte[] compress(@NotNull byte[] content) throws IOException {
+        if (LEVEL <= 0 || content.length < MIN_SIZE) {
+            return null;
+        }
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(content.length / 2);
+        try (OutputStream os = gzip(compressed)) {
+            os.write(content);
+        }
+        return compressed.toByteArray();
+    }
+
+    @NotNull
+    private static OutputStream compress(@NotNull HttpServletResponse response) throws IOException {
+        response.setHeader("Content-Encoding", "gzip");
+        return gzip(response.getOutputStream());
+    }
+
+    @NotNull
+    private static OutputStream gzip(@NotNull OutputStream os) throws IOException {
+        return new GZIPOutputStream(os, 8 * 1024, true) {
+            {
+                def.setLevel(LEVEL);
+            }
+        };
+    }
+
+    /**
+     * @return {@code true} if the Accept-Encoding header of the request lists gzip with a non-zero quality
+     */
+    static boolean acceptsGzip(@NotNull HttpServletRequest request) {
+        String acceptEncoding = request.getHeader("Accept-Encoding");
+        if (LEVEL <= 0 || acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parameters = coding.split(";");
+            String name = parameters[0].trim();
+            if ("gzip".equalsIgnoreCase(name) || "x-gzip".equalsIgnoreCase(name)) {
+                for (int i = 1; i < parameters.length; i++) {
+                    String parameter = parameters[i].trim();
+                    if (parameter.startsWith("q=")) {
+                        try {
+                            return Float.parseFloat(parameter.substring(2)) > 0;
+                        } catch (NumberFormatException e) {
+                            return false;
+                        }
+                    }
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright 2016 Polarion AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.polarion.alm.extensions.codereview;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinTask;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Diff of two sequences of token ids, following the same steps as {@link TextDiffMatchPatch#diffMain(String, String)}
+ * (common prefix and suffix, containment, half match, Myers' bisection), but working on index ranges of the token
+ * arrays only. No intermediate strings or lists are created, the result is written into an {@link EditScript}.
+ */
+final class SequenceDiff implements RangeDiff {
+
+    private final long deadline;
+    private final boolean halfMatch;
+    private final int forkThreshold;
+
+    /**
+     * @param deadline time when the diff should be complete by
+     * @param halfMatch whether the (possibly non-minimal) half match speedup may be used
+     * @param forkThreshold minimum combined length of the two halves of a bisection for them to be diffed in parallel,
+     *            0 to diff serially
+     */
+    SequenceDiff(long deadline, boolean halfMatch, int forkThreshold) {
+        this.deadline = deadline;
+        this.halfMatch = halfMatch;
+        this.forkThreshold = forkThreshold;
+    }
+
+    @NotNull
+    EditScript diff(@NotNull int[] tokens1, @NotNull int[] tokens2) {
+        EditScript script = new EditScript();
+        diff(tokens1, 0, tokens1.length, tokens2, 0, tokens2.length, script);
+        return script;
+    }
+
+    @Override
+    public void diff(@NotNull int[] tokens1, int start1, int end1, @NotNull int[] tokens2, int start2, int end2, @NotNull EditScript script) {
+        // Trim off common prefix and suffix (speedup).
+        int prefix = commonPrefix(tokens1, start1, end1, tokens2, start2, end2);
+        script.equal(prefix);
+        start1 += prefix;
+        start2 += prefix;
+        int suffix = commonSuffix(tokens1, start1, end1, tokens2, start2, end2);
+        compute(tokens1, start1, end1 - suffix, tokens2, start2, end2 - suffix, script);
+        script.equal(suffix);
+    }
+
+    private void compute(@NotNull int[] tokens1, int start1, int end1, @NotNull int[] tokens2, int start2, int end2, @NotNull EditScript script) {
+        int length1 = end1 - start1;
+        int length2 = end2 - start2;
+        if (length1 == 0) {
+            script.insert(length2);
+            return;
+        }
+        if (length2 == 0) {
+            script.delete(length1);
+            return;
+        }
+
+        if (length1 > length2) {
+            int i = indexOf(tokens1, start1, end1, tokens2, start2, end2);
+            if (i != -1) {
+                // Shorter sequence is inside the longer one (speedup).
+                script.delete(i - start1);
+                script.equal(length2);
+                script.delete(end1 - i - length2);
+                return;
+            }
+        } else {
+            int i = indexOf(tokens2, start2, end2, tokens1, start1, end1);
+            if (i != -1) {
+                script.insert(i - start2);
+                script.equal(length1);
+                script.insert(end2 - i - length1);
+                return;
+            }
+        }
+        if (length1 == 1 || length2 == 1) {
+            // After the previous speedup, the single token can't be an equality.
+            script.delete(length1);
+            script.insert(length2);
+            return;
+        }
+
+        // Check to see if the problem can be split in two.
+        int[] hm = halfMatch ? halfMatch(tokens1, start1, end1, tokens2, start2, end2) : null;
+        if (hm != null) {
+            diff(tokens1, start1, hm[0], tokens2, start2, hm[1], script);
+            script.equal(hm[2]);
+            diff(tokens1, hm[0] + hm[2], end1, tokens2, hm[1] + hm[2], end2, script);
+            return;
+        }
+
+        bisect(tokens1, start1, end1, tokens2, start2, end2, script);
+    }
+
+    /**
+     * Finds the 'middle snake' of a diff, splits the problem in two and recurses. See Myers 1986 paper: An O(ND)
+     * Difference Algorithm and Its Variations.
+     */
+    private void bisect(@NotNull int[] tokens1, int start1, int end1, @NotNull int[] tokens2, int start2, int end2, @NotNull EditScript script) {
+        int length1 = end1 - start1;
+        int length2 = end2 - start2;
+        int maxD = (length1 + length2 + 1) / 2;
+        int vOffset = maxD;
+        int vLength = 2 * maxD;
+        int[] v1 = new int[vLength];
+        int[] v2 = new int[vLength];
+        Arrays.fill(v1, -1);
+        Arrays.fill(v2, -1);
+        v1[vOffset + 1] = 0;
+        v2[vOffset + 1] = 0;
+        int delta = length1 - length2;
+        // If the total number of tokens is odd, then the front path will collide with the reverse path.
+        boolean front = delta % 2 != 0;
+        // Offsets for start and end of k loop, prevents mapping of space beyond the grid.
+        int k1start = 0;
+        int k1end = 0;
+        int k2start = 0;
+        int k2end = 0;
+        for (int d = 0; d < maxD; d++) {
+            if (System.currentTimeMillis() > deadline) {
+                break;
+            }
+
+            // Walk the front path one step.
+            for (int k1 = -d + k1start; k1 <= d - k1end; k1 += 2) {
+                int k1Offset = vOffset + k1;
+                int x1;
+                if (k1 == -d || k1 != d && v1[k1Offset - 1] < v1[k1Offset + 1]) {
+                    x1 = v1[k1Offset + 1];
+                } else {
+                    x1 = v1[k1Offset - 1] + 1;
+                }
+                int y1 = x1 - k1;
+                while (x1 < length1 && y1 < length2 && tokens1[start1 + x1] == tokens2[start2 + y1]) {
+                    x1++;
+                    y1++;
+                }
+                v1[k1Offset] = x1;
+                if (x1 > length1) {
+                    // Ran off the right of the graph.
+                    k1end += 2;
+                } else if (y1 > length2) {
+                    // Ran off the bottom of the graph.
+                    k1start += 2;
+                } else if (front) {
+                    int k2Offset = vOffset + delta - k1;
+                    if (k2Offset >= 0 && k2Offset < vLength && v2[k2Offset] != -1) {
+                        // Mirror x2 onto top-left coordinate system.
+                        int x2 = length1 - v2[k2Offset];
+                        if (x1 >= x2) {
+                            // Overlap detected.
+                            split(tokens1, start1, start1 + x1, end1, tokens2, start2, start2 + y1, end2, script);
+                            return;
+                        }
+                    }
+                }
+            }
+
+            // Walk the reverse path one step.
+            for (int k2 = -d + k2start; k2 <= d - k2end; k2 += 2) {
+                int k2Offset = vOffset + k2;
+                int x2;
+                if (k2 == -d || k2 != d && v2[k2Offset - 1] < v2[k2Offset + 1]) {
+                    x2 = v2[k2Offset + 1];
+                } else {
+                    x2 = v2[k2Offset - 1] + 1;
+                }
+                int y2 = x2 - k2;
+                while (x2 < length1 && y2 < length2 && tokens1[end1 - x2 - 1] == tokens2[end2 - y2 - 1]) {
+                    x2++;
+                    y2++;
+                }
+                v2[k2Offset] = x2;
+                if (x2 > length1) {
+                    // Ran off the left of the graph.
+                    k2end += 2;
+                } else if (y2 > length2) {
+                    // Ran off the top of the graph.
+                    k2start += 2;
+                } else if (!front) {
+                    int k1Offset = vOffset + delta - k2;
+                    if (k1Offset >= 0 && k1Offset < vLength && v1[k1Offset] != -1) {
+                        int x1 = v1[k1Offset];
+                        int y1 = vOffset + x1 - k1Offset;
+                        // Mirror x2 onto top-left coordinate system.
+                        x2 = length1 - x2;
+                        if (x1 >= x2) {
+                            // Overlap detected.
+                            split(tokens1, start1, start1 + x1, end1, tokens2, start2, start2 + y1, end2, script);
+                            return;
+                        }
+                    }
+                }
+            }
+        }
+        // Diff took too long and hit the deadline or number of diffs equals number of tokens, no commonality at all.
+        script.delete(length1);
+        script.insert(length2);
+    }
+
+    /**
+     * Diffs the parts before and after the given split point, in parallel when they are large enough. The result is
+     * the same as when diffing them one after the other.
+     */
+    private void split(@NotNull int[] tokens1, int start1, int x, int end1, @NotNull int[] tokens2, int start2, int y, int end2, @NotNull EditScript script) {
+        if (forkThreshold > 0 && end1 - start1 + end2 - start2 >= forkThreshold) {
+            EditScript second = new EditScript();
+            ForkJoinTask<?> task = ForkJoinTask.adapt(() -> diff(tokens1, x, end1, tokens2, y, end2, second)).fork();
+            diff(tokens1, start1, x, tokens2, start2, y, script);
+            task.join();
+            script.append(second);
+        } else {
+            diff(tokens1, start1, x, tokens2, start2, y, script);
+            diff(tokens1, x, end1, tokens2, y, end2, script);
+        }
+    }
+
+    /**
+     * Do the two sequences share a common part which is at least half the length of the longer sequence? This speedup
+     * can produce non-minimal diffs.
+     *
+     * @return start of the common part in the first and in the second sequence and its length, or {@code null} if
+     *         there is no such part
+     */
+    @Nullable
+    private static int[] halfMatch(@NotNull int[] tokens1, int start1, int end1, @NotNull int[] tokens2, int start2, int end2) {
+        int length1 = end1 - start1;
+        int length2 = end2 - start2;
+        boolean firstLonger = length1 > length2;
+        int[] longTokens = firstLonger ? tokens1 : tokens2;
+        int longStart = firstLonger ? start1 : start2;
+        int longEnd = firstLonger ? end1 : end2;
+        int[] shortTokens = firstLonger ? tokens2 : tokens1;
+        int shortStart = firstLonger ? start2 : start1;
+        int shortEnd = firstLonger ? end2 : end1;
+        int longLength = longEnd - longStart;
+        if (longLength < 4 || (shortEnd - shortStart) * 2 < longLength) {
+            // Pointless.
+            return null;
+        }
+
+        // First check if the second quarter is the seed for a half-match.
+        int[] hm1 = halfMatch(longTokens, longStart, longEnd, shortTokens, shortStart, shortEnd, longStart + (longLength + 3) / 4);
+        // Check again based on the third quarter.
+        int[] hm2 = halfMatch(longTokens, longStart, longEnd, shortTokens, shortStart, shortEnd, longStart + (longLength + 1) / 2);
+        int[] hm;
+        if (hm1 == null && hm2 == null) {
+            return null;
+        } else if (hm2 == null) {
+            hm = hm1;
+        } else if (hm1 == null) {
+            hm = hm2;
+        } else {
+            // Both matched. Select the longest.
+            hm = hm1[2] > hm2[2] ? hm1 : hm2;
+        }
+        return firstLonger ? hm : new int[] { hm[1], hm[0], hm[2] };
+    }
+
+    /**
+     * Does a part of the short sequence exist within the long sequence such that it is at least half the length of the
+     * long sequence?
+     *
+     * @param seed start of a quarter length part of the long sequence
+     * @return start of the common part in the long and in the short sequence and its length, or {@code null} if there
+     *         is no such part
+     */
+    @Nullable
+    private static int[] halfMatch(@NotNull int[] longTokens, int longStart, int longEnd, @NotNull int[] shortTokens, int shortStart, int shortEnd, int seed) {
+        int seedLength = (longEnd - longStart) / 4;
+        int bestLongStart = -1;
+        int bestShortStart = -1;
+        int bestLength = 0;
+        int j = indexOf(shortTokens, shortStart, shortEnd, longTokens, seed, seed + seedLength);
+        while (j != -1) {
+            int prefixLength = commonPrefix(longTokens, seed, longEnd, shortTokens, j, shortEnd);
+            int suffixLength = commonSuffix(longTokens, longStart, seed, shortTokens, shortStart, j);
+            if (bestLength < suffixLength + prefixLength) {
+                bestLongStart = seed - suffixLength;
+                bestShortStart = j - suffixLength;
+                bestLength = suffixLength + prefixLength;
+            }
+            j = indexOf(shortTokens, j + 1, shortEnd, longTokens, seed, seed + seedLength);
+        }
+        if (bestLength * 2 >= longEnd - longStart) {
+            return new int[] { bestLongStart, bestShortStart, bestLength };
+        }
+        return null;
+    }
+
+    static int commonPrefix(@NotNull int[] tokens1, int start1, int end1, @NotNull int[] tokens2, int start2, int end2) {
+        int n = Math.min(end1 - start1, end2 - start2);
+        for (int i = 0; i < n; i++) {
+            if (tokens1[start1 + i] != tokens2[start2 + i]) {
+                return i;
+            }
+        }
+        return n;
+    }
+
+    static int commonSuffix(@NotNull int[] tokens1, int start1, int end1, @NotNull int[] tokens2, int start2, int end2) {
+        int n = Math.min(end1 - start1, end2 - start2);
+        for (int i = 1; i <= n; i++) {
+            if (tokens1[end1 - i] != tokens2[end2 - i]) {
+                return i - 1;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * @return position of the first occurrence of the pattern range within the searched range, or -1
+     */
+    private static int indexOf(@NotNull int[] tokens, int start, int end, @NotNull int[] pattern, int patternStart, int patternEnd) {
+        int patternLength = patternEnd - patternStart;
+        if (patternLength == 0) {
+            return start;
+        }
+        int first = pattern[patternStart];
+        int last = end - patternLength;
+        for (int i = start; i <= last; i++) {
+            if (tokens[i] != first) {
+                continue;
+            }
+            int k = 1;
+            while (k < patternLength && tokens[i + k] == pattern[patternStart + k]) {
+                k++;
+            }
+            if (k == patternLength) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+}
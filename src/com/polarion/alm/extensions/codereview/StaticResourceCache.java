@@ -0,0 +1,216 @@
+/*
+ * Copyright 2016 Polarion AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.polarion.alm.extensions.codereview;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Keeps the static resources of the extension in memory together with their compressed variants and validators. The
+ * resources are part of the deployed extension, so they are loaded on first use and never change afterwards.
+ */
+@SuppressWarnings("nls")
+final class StaticResourceCache {
+
+    /**
+     * Time (in seconds) the clients may use a resource without revalidating it.
+     */
+    private static final int MAX_AGE = Integer.getInteger("codereview.resourceMaxAge", 3600);
+
+    @NotNull
+    private final Function<String, InputStream> loader;
+    @NotNull
+    private final ConcurrentHashMap<String, Resource> resources = new ConcurrentHashMap<>();
+
+    /**
+     * @param loader opens the resource of the given path, returns {@code null} if there is none
+     */
+    StaticResourceCache(@NotNull Function<String, InputStream> loader) {
+        this.loader = loader;
+    }
+
+    /**
+     * @return the resource of the given path, {@code null} if there is none (missing resources are not remembered)
+     */
+    @Nullable
+    Resource get(@NotNull String path) throws IOException {
+        // each resource is kept once however its path is spelled
+        String normalizedPath = normalize(path);
+        if (normalizedPath == null) {
+            return null;
+        }
+        try {
+            return resources.computeIfAbsent(normalizedPath, this::load);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * @return the path without empty, "." and ".." segments, {@code null} if it leaves the root of the resources or
+     *         points into WEB-INF or META-INF
+     */
+    @Nullable
+    static String normalize(@NotNull String path) {
+        if (path.indexOf('\\') >= 0) {
+            return null;
+        }
+        Deque<String> segments = new ArrayDeque<>();
+        for (String segment : path.split("/")) {
+            if (segment.equals("..")) {
+                if (segments.isEmpty()) {
+                    return null;
+                }
+                segments.removeLast();
+            } else if (!segment.isEmpty() && !segment.equals(".")) {
+                segments.add(segment);
+            }
+        }
+        if (segments.isEmpty() || segments.getFirst().equalsIgnoreCase("WEB-INF") || segments.getFirst().equalsIgnoreCase("META-INF")) {
+            return null;
+        }
+        return String.join("/", segments);
+    }
+
+    @Nullable
+    private Resource load(@NotNull String path) {
+        try (InputStream is = loader.apply(path)) {
+            if (is == null) {
+                return null;
+            }
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            byte[] buf = new byte[64 * 1024];
+            int len;
+            while ((len = is.read(buf)) != -1) {
+                content.write(buf, 0, len);
+            }
+            return new Resource(getContentType(path), content.toByteArray());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Nullable
+    private static String getContentType(@NotNull String path) {
+        if (path.endsWith(".js")) {
+            return "text/javascript";
+        } else if (path.endsWith(".html")) {
+            return "text/html";
+        } else if (path.endsWith(".png")) {
+            return "image/png";
+        } else if (path.endsWith("css")) {
+            return "text/css";
+        }
+        return null;
+    }
+
+    static final class Resource {
+
+        @Nullable
+        private final String contentType;
+        @NotNull
+        private final byte[] content;
+        @Nullable
+        private final byte[] compressedContent;
+        @NotNull
+        private final String eTag;
+        @NotNull
+        private final String compressedETag;
+        private final long lastModified;
+
+        Resource(@Nullable String contentType, @NotNull byte[] content) throws IOException {
+            this.contentType = contentType;
+            this.content = content;
+            compressedContent = contentType != null && contentType.startsWith("text/") ? ResponseCompression.compress(content) : null;
+            CRC32 crc = new CRC32();
+            crc.update(content);
+            String hash = Long.toHexString(crc.getValue()) + "-" + Integer.toHexString(content.length);
+            eTag = "\"" + hash + "\"";
+            // each encoding is a different representation, it needs its own tag
+            compressedETag = "\"" + hash + "-gzip\"";
+            // HTTP dates have a resolution of seconds
+            lastModified = System.currentTimeMillis() / 1000 * 1000;
+        }
+
+        /**
+         * Sends the resource, or just its headers when the copy of the client is still valid.
+         */
+        void send(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response) throws IOException {
+            boolean compressed = compressedContent != null && ResponseCompression.acceptsGzip(request);
+            String tag = compressed ? compressedETag : eTag;
+            if (contentType != null) {
+                response.setContentType(contentType);
+            }
+            if (compressedContent != null) {
+                response.addHeader("Vary", "Accept-Encoding");
+            }
+            response.setHeader("Cache-Control", "max-age=" + MAX_AGE);
+            response.setHeader("ETag", tag);
+            response.setDateHeader("Last-Modified", lastModified);
+            if (isNotModified(request, tag)) {
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
+            if (compressed) {
+                response.setHeader("Content-Encoding", "gzip");
+            }
+            byte[] body = compressed ? compressedContent : content;
+            response.setContentLength(body.length);
+            try (OutputStream os = response.getOutputStream()) {
+                os.write(body);
+            }
+        }
+
+        private boolean isNotModified(@NotNull HttpServletRequest request, @NotNull String tag) {
+            String ifNoneMatch = request.getHeader("If-None-Match");
+            if (ifNoneMatch != null) {
+                // If-Modified-Since is ignored when the tags are given
+                for (String candidate : ifNoneMatch.split(",")) {
+                    candidate = candidate.trim();
+                    if (candidate.startsWith("W/")) {
+                        candidate = candidate.substring(2);
+                    }
+                    if (candidate.equals("*") || candidate.equals(tag)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            try {
+                long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+                return ifModifiedSince >= lastModified;
+            } catch (IllegalArgumentException e) {
+                return false;
+            }
+        }
+
+    }
+
+}
@@ -21,6 +21,7 @@
 package com.polarion.alm.extensions.codereview;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.CharBuffer;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.util.ArrayList;
@@ -31,6 +32,9 @@ import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.Stack;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -54,12 +58,6 @@ public class TextDiffMatchPatch
 
     private static final String UTF_8 = "UTF-8";
 
-    private static final String TAG_REGEX = "<(\"[^\"]*\"|'[^']*'|[^'\">])*>"; //in case the texts being compared contain XML or HTML tags
-
-    private static final String WORD_SEPARATOR_REGEX = "[ :;?!]|" + TAG_REGEX;
-
-    private static final Pattern WORD_SEPARATOR_PATTERN = Pattern.compile(WORD_SEPARATOR_REGEX);
-
     // Defaults.
     // Set these on your DiffMatchPatch instance to override the defaults.
 
@@ -94,7 +92,8 @@ public class TextDiffMatchPatch
     private short patchMargin = 4;
 
     /**
-     * The number of bits in an int.
+     * The maximum length of the patterns used to locate patches, matchMain
+     * itself accepts longer patterns.
      */
     private short matchMaxBits = 32;
 
@@ -112,6 +111,69 @@ public class TextDiffMatchPatch
         WORD_LEVEL
     }
 
+    /**
+     * Minimum combined length of the two halves of a bisection for them to be
+     * diffed in parallel (0 to always diff serially).
+     */
+    private int diffForkThreshold = 0;
+
+    /**
+     * Minimum combined length of two texts from which their lines are diffed
+     * in independent chunks between unique common lines (0 to never split).
+     */
+    private int largeFileThreshold = 0;
+
+    /**
+     * Algorithm used to compare texts line by line.
+     */
+    private LineDiffAlgorithm lineDiffAlgorithm = LineDiffAlgorithm.MYERS;
+
+    /**
+     * Whether \r\n and \r end lines as well as \n and lines differing in their
+     * line ends only are equal (compact line diffs only).
+     */
+    private boolean diffIgnoreLineEnds = false;
+
+    /**
+     * Whitespace which is ignored when comparing lines (compact line diffs
+     * only), lines differing in their line ends only are equal then too.
+     */
+    private LineWhitespace diffLineWhitespace = LineWhitespace.EXACT;
+
+    public enum LineDiffAlgorithm
+    {
+        /**
+         * Myers' bisection, the result has the minimal number of edits unless the
+         * diff timeout is reached (default).
+         */
+        MYERS,
+        /**
+         * Histogram diff, recursively anchors the diff on the lines which occur
+         * least often. Runs in near-linear time on typical changes and keeps
+         * unique lines such as declarations aligned.
+         */
+        HISTOGRAM
+    }
+
+    /**
+     * Whitespace ignored when comparing lines, the compared texts keep it.
+     */
+    public enum LineWhitespace
+    {
+        /**
+         * All characters of lines are compared (default).
+         */
+        EXACT,
+        /**
+         * Leading spaces and tabs of lines are ignored.
+         */
+        IGNORE_INDENTATION,
+        /**
+         * All whitespace within lines is ignored.
+         */
+        IGNORE_ALL
+    }
+
     /**
      * Internal class representing one diff operation. 
      */
@@ -561,6 +623,86 @@ public class TextDiffMatchPatch
         this.matchMaxBits = matchMaxBits;
     }
 
+    /**
+     * @return the diffForkThreshold
+     */
+    public int getDiffForkThreshold()
+    {
+        return diffForkThreshold;
+    }
+
+    /**
+     * @param diffForkThreshold the diffForkThreshold to set
+     */
+    public void setDiffForkThreshold(final int diffForkThreshold)
+    {
+        this.diffForkThreshold = diffForkThreshold;
+    }
+
+    /**
+     * @return the largeFileThreshold
+     */
+    public int getLargeFileThreshold()
+    {
+        return largeFileThreshold;
+    }
+
+    /**
+     * @param largeFileThreshold the largeFileThreshold to set
+     */
+    public void setLargeFileThreshold(final int largeFileThreshold)
+    {
+        this.largeFileThreshold = largeFileThreshold;
+    }
+
+    /**
+     * @return the diffIgnoreLineEnds
+     */
+    public boolean isDiffIgnoreLineEnds()
+    {
+        return diffIgnoreLineEnds;
+    }
+
+    /**
+     * @param diffIgnoreLineEnds the diffIgnoreLineEnds to set
+     */
+    public void setDiffIgnoreLineEnds(final boolean diffIgnoreLineEnds)
+    {
+        this.diffIgnoreLineEnds = diffIgnoreLineEnds;
+    }
+
+    /**
+     * @return the diffLineWhitespace
+     */
+    public LineWhitespace getDiffLineWhitespace()
+    {
+        return diffLineWhitespace;
+    }
+
+    /**
+     * @param diffLineWhitespace the diffLineWhitespace to set
+     */
+    public void setDiffLineWhitespace(final LineWhitespace diffLineWhitespace)
+    {
+        this.diffLineWhitespace = diffLineWhitespace;
+    }
+
+    /**
+     * @return the lineDiffAlgorithm
+     */
+    public LineDiffAlgorithm getLineDiffAlgorithm()
+    {
+        return lineDiffAlgorithm;
+    }
+
+    /**
+     * @param lineDiffAlgorithm the lineDiffAlgorithm to set
+     */
+    public void setLineDiffAlgorithm(final LineDiffAlgorithm lineDiffAlgorithm)
+    {
+        this.lineDiffAlgorithm = lineDiffAlgorithm;
+    }
+
     // DIFF FUNCTIONS
 
     /**
@@ -577,13 +719,13 @@ public class TextDiffMatchPatch
     }
 
     /**
-     * Indicates is the given value, matches a word separator pattern ({@link #WORD_SEPARATOR_REGEX})
+     * Indicates is the given character is a word separator (see {@link WordTokens})
      * @param value
      * @return
      */
-    private static boolean isWordSepartor(final String value)
+    private static boolean isWordSepartor(final char value)
     {
-        return WORD_SEPARATOR_PATTERN.matcher(value).matches();
+        return WordTokens.isSeparator(value);
     }
 
     /**
@@ -596,9 +738,12 @@ public class TextDiffMatchPatch
     {
         diffMode = DiffMode.LINE_LEVEL;
 
-        LinesOrWordsToCharsResult r = diffLinesOrWordsToChars(text1, text2);
-        List<Diff> diffs = diffMain(r.getChars1(), r.getChars2(), false);
-        diffCharsToLines(diffs, r.getLineArray());
+        DiffList lines = diffMainAtLineLevelCompact(text1, text2);
+        // Lines are reported without their line feeds.
+        LinkedList<Diff> diffs = new LinkedList<Diff>();
+        for (int i = 0; i < lines.size(); i++) {
+            diffs.add(new Diff(lines.getOperation(i), lines.getText(i).replace("\n", "")));
+        }
         return diffs;
     }
 
@@ -612,11 +757,7 @@ public class TextDiffMatchPatch
     {
         diffMode = DiffMode.WORD_LEVEL;
 
-        LinesOrWordsToCharsResult r = diffLinesOrWordsToChars(text1, text2);
-        List<Diff> diffs = diffMain(r.getChars1(), r.getChars2(), false);
-        diffCharsToLines(diffs, r.getLineArray());
-        diffCleanupSemanticLossless(diffs);
-        return diffs;
+        return new LinkedList<Diff>(diffMainAtWordLevelCompact(text1, text2).toDiffs());
     }
 
     /**
@@ -644,14 +785,19 @@ public class TextDiffMatchPatch
      */
     public List<Diff> diffMain(final String text1, final String text2, final boolean checklines)
     {
-        // Set a deadline by which time the diff must be complete.
-        long deadline;
+        return diffMain(text1, text2, checklines, diffDeadline());
+    }
+
+    /**
+     * Set a deadline by which time the diff must be complete.
+     * @return Time when the diff should be complete by.
+     */
+    private long diffDeadline()
+    {
         if (diffTimeout <= 0) {
-            deadline = Long.MAX_VALUE;
-        } else {
-            deadline = System.currentTimeMillis() + (long) (diffTimeout * 1000);
+            return Long.MAX_VALUE;
         }
-        return diffMain(text1, text2, checklines, deadline);
+        return System.currentTimeMillis() + (long) (diffTimeout * 1000);
     }
 
     /**
@@ -805,17 +951,10 @@ public class TextDiffMatchPatch
     private List<Diff> diffLineMode(final String text1, final String text2, final long deadline)
     {
         // Scan the text on a line-by-line basis first.
-        LinesOrWordsToCharsResult b = diffLinesOrWordsToChars(text1, text2);
-        String resultText1 = b.chars1;
-        String resultText2 = b.chars2;
-        List<String> linearray = b.lineArray;
-
-        LinkedList<Diff> diffs = (LinkedList<Diff>) diffMain(resultText1, resultText2, false, deadline);
-
-        // Convert the diff back to original text.
-        diffCharsToLines(diffs, linearray);
+        DiffList lines = diffLines(text1, text2, deadline, false, LineWhitespace.EXACT);
         // Eliminate freak matches (e.g. blank lines)
-        diffCleanupSemantic(diffs);
+        diffCleanupSemantic(lines);
+        LinkedList<Diff> diffs = new LinkedList<Diff>(lines.toDiffs());
 
         // Rediff any replacement blocks, this time character-by-character.
         // Add a dummy entry at the end.
@@ -1014,6 +1153,15 @@ public class TextDiffMatchPatch
         String text1b = text1.substring(x);
         String text2b = text2.substring(y);
 
+        if (diffForkThreshold > 0 && text1.length() + text2.length() >= diffForkThreshold)
+        {
+            // Compute the second diff in parallel, both share the deadline.
+            ForkJoinTask<List<Diff>> taskb = ForkJoinTask.adapt(() -> diffMain(text1b, text2b, false, deadline)).fork();
+            List<Diff> diffs = diffMain(text1a, text2a, false, deadline);
+            diffs.addAll(taskb.join());
+            return diffs;
+        }
+
         // Compute both diffs serially.
         List<Diff> diffs = diffMain(text1a, text2a, false, deadline);
         List<Diff> diffsb = diffMain(text1b, text2b, false, deadline);
@@ -1034,16 +1182,17 @@ public class TextDiffMatchPatch
     protected LinesOrWordsToCharsResult diffLinesOrWordsToChars(final String text1, final String text2)
     {
         List<String> lineArray = new ArrayList<String>();
-        Map<String, Integer> lineHash = new HashMap<String, Integer>();
+        // ids of the table are one less than the indexes of the list
+        TokenTable lineTable = new TokenTable();
         // e.g. linearray[4] == "Hello\n"
-        // e.g. linehash.get("Hello\n") == 4
+        // e.g. linetable.intern("Hello\n") == 3
 
         // "\x00" is a valid character, but various debuggers don't like it.
         // So we'll insert a junk entry to avoid generating a null character.
         lineArray.add("");
 
-        String chars1 = diffLinesOrWordsToCharsMunge(text1, lineArray, lineHash);
-        String chars2 = diffLinesOrWordsToCharsMunge(text2, lineArray, lineHash);
+        String chars1 = diffLinesOrWordsToCharsMunge(text1, lineArray, lineTable);
+        String chars2 = diffLinesOrWordsToCharsMunge(text2, lineArray, lineTable);
         return new LinesOrWordsToCharsResult(chars1, chars2, lineArray);
     }
 
@@ -1052,73 +1201,71 @@ public class TextDiffMatchPatch
      * hashes where each Unicode character represents one line or word.
      * @param text String to encode.
      * @param lineArray List of unique strings.
-     * @param lineHash Map of strings to indices.
+     * @param lineTable Table of the unique strings, only new strings are copied into lineArray.
      * @return Encoded string.
      */
     private String diffLinesOrWordsToCharsMunge(final String text, final List<String> lineArray,
-            final Map<String, Integer> lineHash)
+            final TokenTable lineTable)
     {
         int lineOrWordStart = 0;
         int lineOrWordEnd = -1;
-        String lineOrWord;
+        int lastTagEnd = text.lastIndexOf('>');
 
         StringBuilder chars = new StringBuilder();
-        // Walk the text, pulling out a substring for each line.
+        // Walk the text, looking up each line by its range.
         // text.split('\n') would would temporarily double our memory footprint.
         // Modifying text would create many large strings to garbage collect.
         while (lineOrWordEnd < text.length() - 1)
         {
             int separatorLength = 1;
-            String separator = "";
+            boolean separator = false;
             if (diffMode == DiffMode.LINE_LEVEL) {
                 lineOrWordEnd = text.indexOf('\n', lineOrWordStart);
             } else
             {
-                Matcher m = WORD_SEPARATOR_PATTERN.matcher(text);
-                m.region(lineOrWordStart, text.length());
-
-                if (m.find())
+                lineOrWordEnd = -1;
+                for (int i = lineOrWordStart; i < text.length(); i++)
                 {
-                    lineOrWordEnd = m.start();
-                    separator = m.group();
-                    separatorLength = m.end() - m.start();
-                } else {
-                    lineOrWordEnd = -1;
+                    int length = WordTokens.separatorLength(text, i, lastTagEnd);
+                    if (length != 0)
+                    {
+                        lineOrWordEnd = i;
+                        separator = true;
+                        separatorLength = length;
+                        break;
+                    }
                 }
             }
             if (lineOrWordEnd == -1) {
                 lineOrWordEnd = text.length();
             }
 
-            lineOrWord = text.substring(lineOrWordStart, lineOrWordEnd);
-            lineOrWordStart = lineOrWordEnd + separatorLength;
-
             // adding the line or word
-            if (lineHash.containsKey(lineOrWord)) {
-                chars.append(String.valueOf((char) (int) lineHash.get(lineOrWord)));
-            } else
-            {
-                lineArray.add(lineOrWord);
-                lineHash.put(lineOrWord, lineArray.size() - 1);
-                chars.append(String.valueOf((char) (lineArray.size() - 1)));
-            }
+            appendToken(chars, text, lineOrWordStart, lineOrWordEnd, lineArray, lineTable);
 
             // adding the separator (if not any)
-            if (!"".equals(separator)) {
-                if (lineHash.containsKey(separator)) {
-                    chars.append(String.valueOf((char) (int) lineHash.get(separator)));
-                } else
-                {
-                    lineArray.add(separator);
-                    lineHash.put(separator, lineArray.size() - 1);
-                    chars.append(String.valueOf((char) (lineArray.size() - 1)));
-                }
+            if (separator) {
+                appendToken(chars, text, lineOrWordEnd, lineOrWordEnd + separatorLength, lineArray, lineTable);
             }
-
+            lineOrWordStart = lineOrWordEnd + separatorLength;
         }
         return chars.toString();
     }
 
+    /**
+     * Encode a range of the text as one character, its content is copied only
+     * the first time it occurs.
+     */
+    private static void appendToken(final StringBuilder chars, final String text, final int start, final int end,
+            final List<String> lineArray, final TokenTable lineTable)
+    {
+        int id = lineTable.intern(text, start, end);
+        if (id + 1 == lineArray.size()) {
+            lineArray.add(text.substring(start, end));
+        }
+        chars.append((char) (id + 1));
+    }
+
     /**
      * Rehydrate the text in a diff from a string of line hashes to real lines of
      * text.
@@ -1582,7 +1729,25 @@ public class TextDiffMatchPatch
      */
     private int diffCleanupSemanticScore(final String one, final String two)
     {
-        if (one.length() == 0 || two.length() == 0) {
+        return diffCleanupSemanticScore(one, 0, one.length(), two, 0, two.length());
+    }
+
+    /**
+     * Given two ranges of strings, compute a score representing whether the
+     * internal boundary falls on logical boundaries.
+     * Scores range from 6 (best) to 0 (worst).
+     * @param one First string.
+     * @param oneStart Start of the range of the first string.
+     * @param oneEnd End of the range of the first string.
+     * @param two Second string.
+     * @param twoStart Start of the range of the second string.
+     * @param twoEnd End of the range of the second string.
+     * @return The score.
+     */
+    private int diffCleanupSemanticScore(final String one, final int oneStart, final int oneEnd, final String two,
+            final int twoStart, final int twoEnd)
+    {
+        if (oneStart == oneEnd || twoStart == twoEnd) {
             // Edges are the best.
             return 6;
         }
@@ -1592,16 +1757,16 @@ public class TextDiffMatchPatch
         // 'whitespace'. Since this function's purpose is largely cosmetic,
         // the choice has been made to use each language's native features
         // rather than force total conformity.
-        char char1 = one.charAt(one.length() - 1);
-        char char2 = two.charAt(0);
+        char char1 = one.charAt(oneEnd - 1);
+        char char2 = two.charAt(twoStart);
         boolean nonAlphaNumeric1 = !Character.isLetterOrDigit(char1);
         boolean nonAlphaNumeric2 = !Character.isLetterOrDigit(char2);
-        boolean isWordSeparator1 = nonAlphaNumeric1 && (isWordSepartor(Character.toString(char1)) || '.' == char1);
-        boolean isWordSeparator = nonAlphaNumeric2 && (isWordSepartor(Character.toString(char2)) || '.' == char2);
+        boolean isWordSeparator1 = nonAlphaNumeric1 && (isWordSepartor(char1) || '.' == char1);
+        boolean isWordSeparator = nonAlphaNumeric2 && (isWordSepartor(char2) || '.' == char2);
         boolean lineBreak1 = isWordSeparator1 && Character.getType(char1) == Character.CONTROL;
         boolean lineBreak2 = isWordSeparator && Character.getType(char2) == Character.CONTROL;
-        boolean blankLine1 = lineBreak1 && BLANK_LINE_END.matcher(one).find();
-        boolean blankLine2 = lineBreak2 && BLANK_LINE_START.matcher(two).find();
+        boolean blankLine1 = lineBreak1 && BLANK_LINE_END.matcher(CharBuffer.wrap(one, oneStart, oneEnd)).find();
+        boolean blankLine2 = lineBreak2 && BLANK_LINE_START.matcher(CharBuffer.wrap(two, twoStart, twoEnd)).find();
 
         if (blankLine1 || blankLine2) {
             // Five points for blank lines.
@@ -2173,6 +2338,675 @@ public class TextDiffMatchPatch
         return diffs;
     }
 
+    // COMPACT DIFF FUNCTIONS
+
+    /**
+     * Find the differences between two texts at line level.  Unlike
+     * {@link #diffMainAtLineLevel(String, String)} the result is an array-backed
+     * {@link DiffList} referencing ranges of the original texts; each line keeps
+     * its line end.  If line ends or whitespace are ignored, an equality may
+     * differ from the corresponding range of text2, its text is the one of text1
+     * (the range of text2 ends where the next operation starts in text2).
+     * @param text1 Old string to be diffed.
+     * @param text2 New string to be diffed.
+     * @return DiffList of the differences.
+     */
+    public DiffList diffMainAtLineLevelCompact(final String text1, final String text2)
+    {
+        if (text1 == null || text2 == null) {
+            throw new IllegalArgumentException("Null inputs. (diffMainAtLineLevelCompact)");
+        }
+        return diffLines(text1, text2, diffDeadline(), diffIgnoreLineEnds, diffLineWhitespace);
+    }
+
+    /**
+     * Find the differences between the lines of two texts using the configured
+     * line diff algorithm.  Both texts are reduced to arrays of int ids, one per
+     * distinct line, so there is no limit on the number of distinct lines.
+     * @param text1 Old string to be diffed.
+     * @param text2 New string to be diffed.
+     * @param deadline Time when the diff should be complete by.
+     * @param ignoreLineEnds Whether \r\n and \r end lines too and line ends
+     *     are ignored when comparing lines.
+     * @param whitespace Whitespace ignored when comparing lines, line ends are
+     *     ignored too unless it is {@link LineWhitespace#EXACT}.
+     * @return DiffList of the differences.
+     */
+    private DiffList diffLines(final String text1, final String text2, final long deadline,
+            final boolean ignoreLineEnds, final LineWhitespace whitespace)
+    {
+        boolean anyLineEnd = ignoreLineEnds || whitespace != LineWhitespace.EXACT;
+        // assume lines of 64 characters for the initial size of the table
+        TokenTable lineTable = new TokenTable((text1.length() + text2.length()) / 64,
+                anyLineEnd ? LineTokens.ignoring(whitespace) : TokenTable.EXACT);
+        LineTokens lines1 = LineTokens.tokenize(text1, lineTable, anyLineEnd, whitespace);
+        LineTokens lines2 = LineTokens.tokenize(text2, lineTable, anyLineEnd, whitespace);
+        int[] tokens1 = lines1.getTokens();
+        int[] tokens2 = lines2.getTokens();
+        int tokenCount = lineTable.size();
+        boolean halfMatch = diffTimeout > 0;
+        Supplier<RangeDiff> engines;
+        if (lineDiffAlgorithm == LineDiffAlgorithm.HISTOGRAM) {
+            engines = () -> new HistogramDiff(deadline, halfMatch, diffForkThreshold, tokenCount);
+        } else {
+            engines = () -> new SequenceDiff(deadline, halfMatch, diffForkThreshold);
+        }
+        EditScript script;
+        if (largeFileThreshold > 0 && text1.length() + text2.length() >= largeFileThreshold) {
+            // Large texts are split at unique common lines, the chunks are diffed in parallel if allowed.
+            int parallelism = diffForkThreshold > 0 ? ForkJoinPool.getCommonPoolParallelism() : 1;
+            script = new AnchoredDiff(engines, parallelism).diff(tokens1, tokens2, tokenCount);
+        } else {
+            script = new EditScript();
+            engines.get().diff(tokens1, 0, tokens1.length, tokens2, 0, tokens2.length, script);
+        }
+        return script.toDiffList(text1, lines1.getBounds(), text2, lines2.getBounds());
+    }
+
+    /**
+     * Find the differences between two texts at word level.  The result is an
+     * array-backed {@link DiffList} referencing ranges of the original texts.
+     * @param text1 Old string to be diffed.
+     * @param text2 New string to be diffed.
+     * @return DiffList of the differences.
+     */
+    public DiffList diffMainAtWordLevelCompact(final String text1, final String text2)
+    {
+        if (text1 == null || text2 == null) {
+            throw new IllegalArgumentException("Null inputs. (diffMainAtWordLevelCompact)");
+        }
+        TokenTable wordTable = new TokenTable();
+        WordTokens words1 = WordTokens.tokenize(text1, wordTable);
+        WordTokens words2 = WordTokens.tokenize(text2, wordTable);
+        EditScript script = new SequenceDiff(diffDeadline(), diffTimeout > 0, diffForkThreshold).diff(
+                words1.getTokens(), words2.getTokens());
+        DiffList diffs = script.toDiffList(text1, words1.getBounds(), text2, words2.getBounds());
+        diffCleanupMerge(diffs);
+        diffCleanupSemanticLossless(diffs);
+        return diffs;
+    }
+
+    /**
+     * Reduce the number of edits by eliminating semantically trivial equalities.
+     * @param diffs DiffList of the differences.
+     */
+    public void diffCleanupSemantic(final DiffList diffs)
+    {
+        if (diffs.isEmpty()) {
+            return;
+        }
+        boolean changes = false;
+        IndexStack equalities = new IndexStack(); // Stack of indices of equalities.
+        int lastequality = -1; // Always equal to the length of the equality on top of the stack, -1 if none.
+        // Number of characters that changed prior to the equality.
+        int lengthInsertions1 = 0;
+        int lengthDeletions1 = 0;
+        // Number of characters that changed after the equality.
+        int lengthInsertions2 = 0;
+        int lengthDeletions2 = 0;
+        int pointer = 0;
+        while (pointer < diffs.size())
+        {
+            if (diffs.getOperation(pointer) == DiffOperation.EQUAL)
+            {
+                // Equality found.
+                equalities.push(pointer);
+                lengthInsertions1 = lengthInsertions2;
+                lengthDeletions1 = lengthDeletions2;
+                lengthInsertions2 = 0;
+                lengthDeletions2 = 0;
+                lastequality = diffs.getLength(pointer);
+            } else
+            {
+                // An insertion or deletion.
+                if (diffs.getOperation(pointer) == DiffOperation.INSERT) {
+                    lengthInsertions2 += diffs.getLength(pointer);
+                } else {
+                    lengthDeletions2 += diffs.getLength(pointer);
+                }
+                // Eliminate an equality that is smaller or equal to the edits on both
+                // sides of it.
+                if (lastequality != -1 && lastequality <= Math.max(lengthInsertions1, lengthDeletions1)
+                        && lastequality <= Math.max(lengthInsertions2, lengthDeletions2))
+                {
+                    splitEquality(diffs, equalities.pop());
+                    if (!equalities.isEmpty()) {
+                        // Throw away the previous equality (it needs to be reevaluated).
+                        equalities.pop();
+                    }
+                    lengthInsertions1 = 0; // Reset the counters.
+                    lengthInsertions2 = 0;
+                    lengthDeletions1 = 0;
+                    lengthDeletions2 = 0;
+                    lastequality = -1;
+                    changes = true;
+                    // Walk back to the previous equality, or to the start if there is none.
+                    pointer = equalities.isEmpty() ? 0 : equalities.peek();
+                    continue;
+                }
+            }
+            pointer++;
+        }
+
+        // Normalize the diff.
+        if (changes) {
+            diffCleanupMerge(diffs);
+        }
+        diffCleanupSemanticLossless(diffs);
+        findOverlapsBetweenDeletionAndInsertion(diffs);
+    }
+
+    /**
+     * Replace the equality at the given index with a deletion and an insertion
+     * of the same text.
+     * @param diffs DiffList of the differences.
+     * @param index Index of the equality.
+     */
+    private static void splitEquality(final DiffList diffs, final int index)
+    {
+        int start1 = diffs.getStart1(index);
+        int start2 = diffs.getStart2(index);
+        int length = diffs.getLength(index);
+        diffs.set(index, DiffOperation.DELETE, start1, start2, length);
+        diffs.insert(index + 1, DiffOperation.INSERT, start1 + length, start2, length);
+    }
+
+    /**
+     * Find any overlaps between deletions and insertions.
+     * e.g: <del>abcxxx</del><ins>xxxdef</ins>
+     *   -> <del>abc</del>xxx<ins>def</ins>
+     * e.g: <del>xxxabc</del><ins>defxxx</ins>
+     *   -> <ins>def</ins>xxx<del>abc</del>
+     * Only extract an overlap if it is as big as the edit ahead or behind it.
+     * @param diffs DiffList of the differences.
+     */
+    private void findOverlapsBetweenDeletionAndInsertion(final DiffList diffs)
+    {
+        String text1 = diffs.getText1();
+        String text2 = diffs.getText2();
+        int pointer = 1;
+        while (pointer < diffs.size())
+        {
+            if (diffs.getOperation(pointer - 1) == DiffOperation.DELETE
+                    && diffs.getOperation(pointer) == DiffOperation.INSERT)
+            {
+                int deletionStart = diffs.getStart1(pointer - 1);
+                int deletionLength = diffs.getLength(pointer - 1);
+                int insertionStart = diffs.getStart2(pointer);
+                int insertionLength = diffs.getLength(pointer);
+                int overlapLength1 = diffCommonOverlap(text1, deletionStart, deletionLength, text2, insertionStart,
+                        insertionLength);
+                int overlapLength2 = diffCommonOverlap(text2, insertionStart, insertionLength, text1, deletionStart,
+                        deletionLength);
+                if (overlapLength1 >= overlapLength2)
+                {
+                    if (overlapLength1 >= deletionLength / 2.0 || overlapLength1 >= insertionLength / 2.0)
+                    {
+                        // Overlap found. Insert an equality and trim the surrounding edits.
+                        diffs.setLength(pointer - 1, deletionLength - overlapLength1);
+                        diffs.insert(pointer, DiffOperation.EQUAL, deletionStart + deletionLength - overlapLength1,
+                                insertionStart, overlapLength1);
+                        diffs.set(pointer + 1, DiffOperation.INSERT, deletionStart + deletionLength,
+                                insertionStart + overlapLength1, insertionLength - overlapLength1);
+                        pointer++;
+                    }
+                } else
+                {
+                    if (overlapLength2 >= deletionLength / 2.0 || overlapLength2 >= insertionLength / 2.0)
+                    {
+                        // Reverse overlap found.
+                        // Insert an equality and swap and trim the surrounding edits.
+                        diffs.set(pointer - 1, DiffOperation.INSERT, deletionStart, insertionStart,
+                                insertionLength - overlapLength2);
+                        diffs.insert(pointer, DiffOperation.EQUAL, deletionStart,
+                                insertionStart + insertionLength - overlapLength2, overlapLength2);
+                        diffs.set(pointer + 1, DiffOperation.DELETE, deletionStart + overlapLength2,
+                                insertionStart + insertionLength, deletionLength - overlapLength2);
+                        pointer++;
+                    }
+                }
+                pointer++;
+            }
+            pointer++;
+        }
+    }
+
+    /**
+     * Look for single edits surrounded on both sides by equalities
+     * which can be shifted sideways to align the edit to a word boundary.
+     * e.g: The c<ins>at c</ins>ame. -> The <ins>cat </ins>came.
+     * @param diffs DiffList of the differences.
+     */
+    public void diffCleanupSemanticLossless(final DiffList diffs)
+    {
+        boolean changes = false;
+        // Intentionally ignore the first and last element (don't need checking).
+        int pointer = 1;
+        while (pointer < diffs.size() - 1)
+        {
+            if (diffs.getOperation(pointer - 1) == DiffOperation.EQUAL
+                    && diffs.getOperation(pointer + 1) == DiffOperation.EQUAL)
+            {
+                // This is a single edit surrounded by equalities.
+                // Both equalities are contained in the text of the edit too.
+                String text = diffs.getSource(pointer);
+                int editStart = diffs.getStart(pointer);
+                int editLength = diffs.getLength(pointer);
+                int equality1Length = diffs.getLength(pointer - 1);
+                int equality2Length = diffs.getLength(pointer + 1);
+                int equality1Start = editStart - equality1Length;
+                int equality2End = editStart + editLength + equality2Length;
+
+                // First, shift the edit as far left as possible.
+                int offset = -diffCommonSuffix(text, equality1Start, editStart, text, editStart, editStart + editLength);
+
+                // Second, step character by character right, looking for the best fit.
+                int bestOffset = offset;
+                int bestScore = diffCleanupSemanticScore(text, equality1Start, editStart + offset, editLength,
+                        equality2End);
+                while (editLength != 0 && editStart + offset + editLength < equality2End
+                        && text.charAt(editStart + offset) == text.charAt(editStart + offset + editLength))
+                {
+                    offset++;
+                    int score = diffCleanupSemanticScore(text, equality1Start, editStart + offset, editLength,
+                            equality2End);
+                    // The >= encourages trailing rather than leading whitespace on edits.
+                    if (score >= bestScore)
+                    {
+                        bestScore = score;
+                        bestOffset = offset;
+                    }
+                }
+
+                if (bestOffset != 0)
+                {
+                    // We have an improvement, save it back to the diff.
+                    diffs.shift(pointer, bestOffset);
+                    diffs.shift(pointer + 1, bestOffset);
+                    diffs.setLength(pointer + 1, equality2Length - bestOffset);
+                    if (equality1Length + bestOffset != 0) {
+                        diffs.setLength(pointer - 1, equality1Length + bestOffset);
+                    } else
+                    {
+                        diffs.remove(pointer - 1);
+                        pointer--;
+                        changes = true;
+                    }
+                    if (equality2Length - bestOffset == 0)
+                    {
+                        diffs.remove(pointer + 1);
+                        pointer--;
+                        changes = true;
+                    }
+                }
+            }
+            pointer++;
+        }
+        // A removed equality leaves the edits around it split.
+        if (changes) {
+            diffCleanupMerge(diffs);
+        }
+    }
+
+    /**
+     * Score of an edit placed between two equalities, all of them being
+     * consecutive ranges of the same text.
+     * @param text Text containing the equalities and the edit.
+     * @param equality1Start Start of the first equality.
+     * @param editStart Start of the edit, end of the first equality.
+     * @param editLength Length of the edit.
+     * @param equality2End End of the second equality.
+     * @return The score.
+     */
+    private int diffCleanupSemanticScore(final String text, final int equality1Start, final int editStart,
+            final int editLength, final int equality2End)
+    {
+        int editEnd = editStart + editLength;
+        return diffCleanupSemanticScore(text, equality1Start, editStart, text, editStart, editEnd)
+                + diffCleanupSemanticScore(text, editStart, editEnd, text, editEnd, equality2End);
+    }
+
+    /**
+     * Reduce the number of edits by eliminating operationally trivial equalities.
+     * @param diffs DiffList of the differences.
+     */
+    public void diffCleanupEfficiency(final DiffList diffs)
+    {
+        if (diffs.isEmpty()) {
+            return;
+        }
+        boolean changes = false;
+        IndexStack equalities = new IndexStack(); // Stack of indices of equalities.
+        int lastequality = -1; // Always equal to the length of the equality on top of the stack, -1 if none.
+        // Is there an insertion operation before the last equality.
+        boolean preIns = false;
+        // Is there a deletion operation before the last equality.
+        boolean preDel = false;
+        // Is there an insertion operation after the last equality.
+        boolean postIns = false;
+        // Is there a deletion operation after the last equality.
+        boolean postDel = false;
+        int pointer = 0;
+        int safeDiff = 0; // The last diff that is known to be unsplitable.
+        while (pointer < diffs.size())
+        {
+            if (diffs.getOperation(pointer) == DiffOperation.EQUAL)
+            {
+                // Equality found.
+                if (diffs.getLength(pointer) < diffEditCost && (postIns || postDel))
+                {
+                    // Candidate found.
+                    equalities.push(pointer);
+                    preIns = postIns;
+                    preDel = postDel;
+                    lastequality = diffs.getLength(pointer);
+                } else
+                {
+                    // Not a candidate, and can never become one.
+                    equalities.clear();
+                    lastequality = -1;
+                    safeDiff = pointer;
+                }
+                postIns = false;
+                postDel = false;
+            } else
+            {
+                // An insertion or deletion.
+                if (diffs.getOperation(pointer) == DiffOperation.DELETE) {
+                    postDel = true;
+                } else {
+                    postIns = true;
+                }
+                /*
+                 * Five types to be split:
+                 * <ins>A</ins><del>B</del>XY<ins>C</ins><del>D</del>
+                 * <ins>A</ins>X<ins>C</ins><del>D</del>
+                 * <ins>A</ins><del>B</del>X<ins>C</ins>
+                 * <ins>A</del>X<ins>C</ins><del>D</del>
+                 * <ins>A</ins><del>B</del>X<del>C</del>
+                 */
+                if (lastequality != -1
+                        && (preIns && preDel && postIns && postDel || lastequality < diffEditCost / 2
+                                && (preIns ? 1 : 0) + (preDel ? 1 : 0) + (postIns ? 1 : 0) + (postDel ? 1 : 0) == 3))
+                {
+                    int equality = equalities.pop();
+                    splitEquality(diffs, equality);
+                    lastequality = -1;
+                    changes = true;
+                    if (preIns && preDel)
+                    {
+                        // No changes made which could affect previous entry, keep going.
+                        postIns = true;
+                        postDel = true;
+                        equalities.clear();
+                        safeDiff = equality + 1;
+                        pointer = equality + 2;
+                    } else
+                    {
+                        if (!equalities.isEmpty()) {
+                            // Throw away the previous equality (it needs to be reevaluated).
+                            equalities.pop();
+                        }
+                        // Walk back to the last known safe diff.
+                        pointer = equalities.isEmpty() ? safeDiff : equalities.peek();
+                        postIns = false;
+                        postDel = false;
+                    }
+                    continue;
+                }
+            }
+            pointer++;
+        }
+
+        if (changes) {
+            diffCleanupMerge(diffs);
+        }
+    }
+
+    /**
+     * Reorder and merge like edit sections.  Merge equalities.
+     * Any edit section can move as long as it doesn't cross an equality.
+     * @param diffs DiffList of the differences.
+     */
+    public void diffCleanupMerge(final DiffList diffs)
+    {
+        String text1 = diffs.getText1();
+        String text2 = diffs.getText2();
+        DiffList merged = new DiffList(text1, text2, diffs.size());
+        int countDelete = 0;
+        int countInsert = 0;
+        int startDelete = 0;
+        int startInsert = 0;
+        int lengthDelete = 0;
+        int lengthInsert = 0;
+        // Walk one step past the end to flush the pending edits.
+        for (int pointer = 0; pointer <= diffs.size(); pointer++)
+        {
+            DiffOperation operation = pointer < diffs.size() ? diffs.getOperation(pointer) : DiffOperation.EQUAL;
+            switch (operation)
+            {
+            case INSERT:
+                if (countInsert == 0) {
+                    startInsert = diffs.getStart2(pointer);
+                }
+                countInsert++;
+                lengthInsert += diffs.getLength(pointer);
+                break;
+            case DELETE:
+                if (countDelete == 0) {
+                    startDelete = diffs.getStart1(pointer);
+                }
+                countDelete++;
+                lengthDelete += diffs.getLength(pointer);
+                break;
+            case EQUAL:
+                if (countDelete != 0 && countInsert != 0)
+                {
+                    // Factor out any common prefixes.
+                    int commonlength = diffCommonPrefix(text2, startInsert, startInsert + lengthInsert, text1,
+                            startDelete, startDelete + lengthDelete);
+                    merged.append(DiffOperation.EQUAL, commonlength);
+                    startInsert += commonlength;
+                    startDelete += commonlength;
+                    lengthInsert -= commonlength;
+                    lengthDelete -= commonlength;
+                    // Factor out any common suffixes.
+                    commonlength = diffCommonSuffix(text2, startInsert, startInsert + lengthInsert, text1,
+                            startDelete, startDelete + lengthDelete);
+                    merged.append(DiffOperation.DELETE, lengthDelete - commonlength);
+                    merged.append(DiffOperation.INSERT, lengthInsert - commonlength);
+                    merged.append(DiffOperation.EQUAL, commonlength);
+                } else
+                {
+                    merged.append(DiffOperation.DELETE, lengthDelete);
+                    merged.append(DiffOperation.INSERT, lengthInsert);
+                }
+                if (pointer < diffs.size()) {
+                    merged.append(DiffOperation.EQUAL, diffs.getLength(pointer));
+                }
+                countInsert = 0;
+                countDelete = 0;
+                lengthDelete = 0;
+                lengthInsert = 0;
+                break;
+            }
+        }
+        diffs.replaceWith(merged);
+
+        /*
+         * Second pass: look for single edits surrounded on both sides by equalities
+         * which can be shifted sideways to eliminate an equality.
+         * e.g: A<ins>BA</ins>C -> <ins>AB</ins>AC
+         */
+        boolean changes = false;
+        // Intentionally ignore the first and last element (don't need checking).
+        int pointer = 1;
+        while (pointer < diffs.size() - 1)
+        {
+            if (diffs.getOperation(pointer - 1) == DiffOperation.EQUAL
+                    && diffs.getOperation(pointer + 1) == DiffOperation.EQUAL)
+            {
+                // This is a single edit surrounded by equalities.
+                String text = diffs.getSource(pointer);
+                int editStart = diffs.getStart(pointer);
+                int editLength = diffs.getLength(pointer);
+                int prevLength = diffs.getLength(pointer - 1);
+                int nextLength = diffs.getLength(pointer + 1);
+                if (prevLength <= editLength
+                        && text.regionMatches(editStart + editLength - prevLength, text, editStart - prevLength, prevLength))
+                {
+                    // Shift the edit over the previous equality.
+                    diffs.shift(pointer, -prevLength);
+                    diffs.shift(pointer + 1, -prevLength);
+                    diffs.setLength(pointer + 1, prevLength + nextLength);
+                    diffs.remove(pointer - 1);
+                    changes = true;
+                } else if (nextLength <= editLength
+                        && text.regionMatches(editStart, text, editStart + editLength, nextLength))
+                {
+                    // Shift the edit over the next equality.
+                    diffs.setLength(pointer - 1, prevLength + nextLength);
+                    diffs.shift(pointer, nextLength);
+                    diffs.remove(pointer + 1);
+                    changes = true;
+                }
+            }
+            pointer++;
+        }
+        // If shifts were made, the diff needs reordering and another shift sweep.
+        if (changes) {
+            diffCleanupMerge(diffs);
+        }
+    }
+
+    /**
+     * Determine the common prefix of two ranges of strings.
+     * @return The number of characters common to the start of both ranges.
+     */
+    private static int diffCommonPrefix(final String text1, final int start1, final int end1, final String text2,
+            final int start2, final int end2)
+    {
+        int n = Math.min(end1 - start1, end2 - start2);
+        for (int i = 0; i < n; i++)
+        {
+            if (text1.charAt(start1 + i) != text2.charAt(start2 + i)) {
+                return i;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Determine the common suffix of two ranges of strings.
+     * @return The number of characters common to the end of both ranges.
+     */
+    private static int diffCommonSuffix(final String text1, final int start1, final int end1, final String text2,
+            final int start2, final int end2)
+    {
+        int n = Math.min(end1 - start1, end2 - start2);
+        for (int i = 1; i <= n; i++)
+        {
+            if (text1.charAt(end1 - i) != text2.charAt(end2 - i)) {
+                return i - 1;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Determine if the suffix of one range of a string is the prefix of a range
+     * of another string.
+     * @return The number of characters common to the end of the first range and
+     *     the start of the second range.
+     */
+    private static int diffCommonOverlap(final String text1, final int start1, final int length1,
+            final String text2, final int start2, final int length2)
+    {
+        // Eliminate the null case.
+        if (length1 == 0 || length2 == 0) {
+            return 0;
+        }
+        // Truncate the longer range.
+        int textLength = Math.min(length1, length2);
+        int end1 = start1 + length1;
+        // Quick check for the worst case.
+        if (text1.regionMatches(end1 - textLength, text2, start2, textLength)) {
+            return textLength;
+        }
+
+        // Start by looking for a single character match
+        // and increase length until no match is found.
+        int best = 0;
+        int length = 1;
+        while (true)
+        {
+            int found = indexOf(text2, start2, start2 + textLength, text1, end1 - length, length);
+            if (found == -1) {
+                return best;
+            }
+            length += found;
+            if (found == 0 || text1.regionMatches(end1 - length, text2, start2, length))
+            {
+                best = length;
+                length++;
+            }
+        }
+    }
+
+    /**
+     * Locate a range of a string within a range of another string.
+     * @return Offset of the first occurrence from the start of the searched
+     *     range, or -1 if there is none.
+     */
+    private static int indexOf(final String text, final int start, final int end, final String pattern,
+            final int patternStart, final int patternLength)
+    {
+        for (int i = start; i <= end - patternLength; i++)
+        {
+            if (text.regionMatches(i, pattern, patternStart, patternLength)) {
+                return i - start;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Growable stack of indices into a {@link DiffList}.
+     */
+    private static final class IndexStack
+    {
+        private int[] elements = new int[16];
+        private int size;
+
+        void push(final int index)
+        {
+            if (size == elements.length) {
+                elements = Arrays.copyOf(elements, size * 2);
+            }
+            elements[size++] = index;
+        }
+
+        int pop()
+        {
+            return elements[--size];
+        }
+
+        int peek()
+        {
+            return elements[size - 1];
+        }
+
+        boolean isEmpty()
+        {
+            return size == 0;
+        }
+
+        void clear()
+        {
+            size = 0;
+        }
+    }
+
     // MATCH FUNCTIONS
 
     /**
@@ -2219,10 +3053,11 @@ public class TextDiffMatchPatch
      */
     protected int matchBitap(final String text, final String pattern, final int loc)
     {
-        assert matchMaxBits == 0 || pattern.length() <= matchMaxBits : "Pattern too long for this application.";
-
         // Initialise the alphabet.
-        Map<Character, Integer> s = matchAlphabet(pattern);
+        BitapAlphabet alphabet = new BitapAlphabet(pattern);
+        long[] masks = alphabet.masks();
+        // Patterns longer than 64 characters use several words per bit vector.
+        int words = alphabet.words();
 
         // Highest score beyond which we give up.
         double scoreThreshold = matchThreshold;
@@ -2239,13 +3074,18 @@ public class TextDiffMatchPatch
         }
 
         // Initialise the bit arrays.
-        int matchmask = 1 << pattern.length() - 1;
+        int matchword = (pattern.length() - 1) >>> 6;
+        long matchmask = 1L << pattern.length() - 1;
         bestLoc = -1;
 
         int binMin, binMid;
         int binMax = pattern.length() + text.length();
-        // Empty initialization added to appease Java compiler.
-        int[] lastRd = new int[0];
+        // The bit vectors of two error levels are kept, the arrays are reused.
+        // They only cover the scanned window of the text, starting at rdStart.
+        long[] rd = null;
+        long[] lastRd = null;
+        int rdStart = 0;
+        int lastRdStart = 0;
         for (int d = 0; d < pattern.length(); d++)
         {
             // Scan for the best match; each iteration allows for one more error.
@@ -2267,25 +3107,44 @@ public class TextDiffMatchPatch
             int start = Math.max(1, loc - binMid + 1);
             int finish = Math.min(loc + binMid, text.length()) + pattern.length();
 
-            int[] rd = new int[finish + 2];
-            rd[finish + 1] = (1 << d) - 1;
+            // Lowest position the scan can reach when a match moves the start, the
+            // window only shrinks with growing error level so the previous one covers it.
+            rdStart = Math.max(1, loc - binMid - pattern.length() + 1);
+            int size = (finish + 2 - rdStart) * words;
+            if (rd == null || rd.length < size) {
+                rd = new long[size];
+            } else {
+                Arrays.fill(rd, 0, size, 0L);
+            }
+            // rd[finish + 1] = (1 << d) - 1
+            for (int w = 0; w < words && w << 6 < d; w++) {
+                rd[(finish + 1 - rdStart) * words + w] = d - (w << 6) >= 64 ? -1L : (1L << d - (w << 6)) - 1;
+            }
             for (int j = finish; j >= start; j--)
             {
-                int charMatch;
-                if (text.length() <= j - 1 || !s.containsKey(text.charAt(j - 1))) {
-                    // Out of range.
-                    charMatch = 0;
-                } else {
-                    charMatch = s.get(text.charAt(j - 1));
-                }
-                if (d == 0) {
-                    // First pass: exact match.
-                    rd[j] = (rd[j + 1] << 1 | 1) & charMatch;
-                } else {
-                    // Subsequent passes: fuzzy match.
-                    rd[j] = (rd[j + 1] << 1 | 1) & charMatch | (lastRd[j + 1] | lastRd[j]) << 1 | 1 | lastRd[j + 1];
+                // Out of range characters don't match.
+                int row = text.length() <= j - 1 ? -1 : alphabet.row(text.charAt(j - 1));
+                int current = (j - rdStart) * words;
+                int next = current + words;
+                int lastCurrent = (j - lastRdStart) * words;
+                int lastNext = lastCurrent + words;
+                long carry = 1;
+                long lastCarry = 1;
+                for (int w = 0; w < words; w++)
+                {
+                    long charMatch = row == -1 ? 0 : masks[row + w];
+                    long value = rd[next + w];
+                    long result = (value << 1 | carry) & charMatch;
+                    carry = value >>> 63;
+                    if (d != 0) {
+                        // Subsequent passes: fuzzy match.
+                        long last = lastRd[lastNext + w] | lastRd[lastCurrent + w];
+                        result |= last << 1 | lastCarry | lastRd[lastNext + w];
+                        lastCarry = last >>> 63;
+                    }
+                    rd[current + w] = result;
                 }
-                if ((rd[j] & matchmask) != 0)
+                if ((rd[current + matchword] & matchmask) != 0)
                 {
                     double score = matchBitapScore(d, j - 1, loc, pattern);
                     // This match will almost certainly be better than any existing
@@ -2309,7 +3168,10 @@ public class TextDiffMatchPatch
                 // No hope for a (better) match at greater error levels.
                 break;
             }
+            long[] previous = lastRd;
             lastRd = rd;
+            lastRdStart = rdStart;
+            rd = previous;
         }
         return bestLoc;
     }
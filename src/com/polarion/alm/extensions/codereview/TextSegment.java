@@ -0,0 +1,123 @@
+/*
+ * Copyright 2016 Polarion AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.polarion.alm.extensions.codereview;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Read-only view of a range of a string. The characters are not copied, two segments are equal when they contain the
+ * same characters, no matter which strings they are taken from.
+ */
+@SuppressWarnings("nls")
+public final class TextSegment implements CharSequence {
+
+    private final @NotNull String source;
+    private final int start;
+    private final int end;
+    private int hash;
+
+    public TextSegment(@NotNull String source, int start, int end) {
+        if (start < 0 || end > source.length() || start > end) {
+            throw new IndexOutOfBoundsException("Range: " + start + "-" + end + ", Length: " + source.length());
+        }
+        this.source = source;
+        this.start = start;
+        this.end = end;
+    }
+
+    public @NotNull String getSource() {
+        return source;
+    }
+
+    /**
+     * @return position in {@link #getSource()} where the segment starts
+     */
+    public int getStart() {
+        return start;
+    }
+
+    /**
+     * @return position in {@link #getSource()} right after the segment
+     */
+    public int getEnd() {
+        return end;
+    }
+
+    @Override
+    public int length() {
+        return end - start;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= end - start) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Length: " + length());
+        }
+        return source.charAt(start + index);
+    }
+
+    @Override
+    public @NotNull TextSegment subSequence(int from, int to) {
+        if (from < 0 || to > end - start || from > to) {
+            throw new IndexOutOfBoundsException("Range: " + from + "-" + to + ", Length: " + length());
+        }
+        return new TextSegment(source, start + from, start + to);
+    }
+
+    /**
+     * @return {@code true} if the segment consists of whitespace only
+     */
+    public boolean isBlank() {
+        for (int i = start; i < end; i++) {
+            if (!Character.isWhitespace(source.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int h = hash;
+        if (h == 0) {
+            for (int i = start; i < end; i++) {
+                h = 31 * h + source.charAt(i);
+            }
+            hash = h;
+        }
+        return h;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof TextSegment)) {
+            return false;
+        }
+        TextSegment other = (TextSegment) obj;
+        int length = end - start;
+        return length == other.end - other.start && hashCode() == other.hashCode()
+                && source.regionMatches(start, other.source, other.start, length);
+    }
+
+    @Override
+    public @NotNull String toString() {
+        return source.substring(start, end);
+    }
+
+}
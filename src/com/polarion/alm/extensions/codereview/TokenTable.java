@@ -0,0 +1,169 @@
+/*
+ * Copyright 2016 Polarion AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.polarion.alm.extensions.codereview;
+
+import java.util.Arrays;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Assigns ids to distinct ranges of texts (lines, words...) without copying them. The ranges are looked up by a 64-bit
+ * hash in an open-addressing table, they are compared by their {@link Equality} only when the hashes are equal.
+ */
+final class TokenTable {
+
+    /**
+     * Tells whether two ranges are the same token. Ranges considered equal must have the same hash.
+     */
+    interface Equality {
+
+        boolean equal(@NotNull String text1, int start1, int end1, @NotNull String text2, int start2, int end2);
+
+    }
+
+    /**
+     * Ranges consisting of the same characters are equal.
+     */
+    static final Equality EXACT = (text1, start1, end1, text2, start2, end2) -> end1 - start1 == end2 - start2
+            && text1.regionMatches(start1, text2, start2, end1 - start1);
+
+    /**
+     * Hash of an empty range (FNV-1a offset basis).
+     */
+    static final long EMPTY_HASH = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * Hashes of the entries, the slot is empty when its id is -1.
+     */
+    private long[] hashes;
+    private int[] slotIds;
+
+    /**
+     * Text, start and end of the first occurrence of each token, indexed by id.
+     */
+    private String[] sources;
+    private int[] starts;
+    private int[] ends;
+    private int size;
+
+    private final @NotNull Equality equality;
+
+    TokenTable() {
+        this(256, EXACT);
+    }
+
+    /**
+     * @param expectedSize expected number of distinct tokens
+     */
+    TokenTable(int expectedSize, @NotNull Equality equality) {
+        this.equality = equality;
+        int capacity = Math.max(16, Integer.highestOneBit(Math.max(expectedSize, 1) * 4 - 1));
+        hashes = new long[capacity];
+        slotIds = new int[capacity];
+        Arrays.fill(slotIds, -1);
+        sources = new String[capacity / 2];
+        starts = new int[capacity / 2];
+        ends = new int[capacity / 2];
+    }
+
+    /**
+     * @return hash of the given range of the text, to be passed to {@link #intern(String, int, int, long)}
+     */
+    static long hash(@NotNull String text, int start, int end) {
+        long hash = EMPTY_HASH;
+        for (int i = start; i < end; i++) {
+            hash = (hash ^ text.charAt(i)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * Extends the hash of a range by the next character, see {@link #hash(String, int, int)}.
+     */
+    static long hash(long hash, char c) {
+        return (hash ^ c) * FNV_PRIME;
+    }
+
+    int intern(@NotNull String text, int start, int end) {
+        return intern(text, start, end, hash(text, start, end));
+    }
+
+    /**
+     * @param hash hash of the range computed by {@link #hash(String, int, int)}, or another hash which is the same for
+     *            all ranges equal to it
+     * @return id of the given range of the text, a new id is assigned to text which wasn't seen so far
+     */
+    int intern(@NotNull String text, int start, int end, long hash) {
+        int mask = hashes.length - 1;
+        int slot = mix(hash) & mask;
+        int id;
+        while ((id = slotIds[slot]) != -1) {
+            if (hashes[slot] == hash && equality.equal(text, start, end, sources[id], starts[id], ends[id])) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+        id = size++;
+        if (id == sources.length) {
+            int capacity = id * 2;
+            sources = Arrays.copyOf(sources, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+        }
+        sources[id] = text;
+        starts[id] = start;
+        ends[id] = end;
+        hashes[slot] = hash;
+        slotIds[slot] = id;
+        if (size * 2 > hashes.length) {
+            rehash();
+        }
+        return id;
+    }
+
+    /**
+     * @return number of distinct tokens, the ids are below it
+     */
+    int size() {
+        return size;
+    }
+
+    private void rehash() {
+        long[] oldHashes = hashes;
+        int[] oldIds = slotIds;
+        hashes = new long[oldHashes.length * 2];
+        slotIds = new int[oldIds.length * 2];
+        Arrays.fill(slotIds, -1);
+        int mask = hashes.length - 1;
+        for (int i = 0; i < oldIds.length; i++) {
+            if (oldIds[i] != -1) {
+                int slot = mix(oldHashes[i]) & mask;
+                while (slotIds[slot] != -1) {
+                    slot = (slot + 1) & mask;
+                }
+                hashes[slot] = oldHashes[i];
+                slotIds[slot] = oldIds[i];
+            }
+        }
+    }
+
+    private static int mix(long hash) {
+        long h = hash * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ h >>> 32);
+    }
+
+}
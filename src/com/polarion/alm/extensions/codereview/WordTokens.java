@@ -0,0 +1,137 @@
+/*
+ * Copyright 2016 Polarion AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.polarion.alm.extensions.codereview;
+
+import java.util.Arrays;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Words and separators of a text reduced to token ids. Separators are the characters {@code ' ', ':', ';', '?', '!'},
+ * tabs, line breaks and XML or HTML tags (a tag is one separator), everything between two separators is a word.
+ */
+final class WordTokens {
+
+    private static final boolean[] SEPARATORS = new boolean[128];
+
+    static {
+        for (char c : " :;?!\t\r\n".toCharArray()) {
+            SEPARATORS[c] = true;
+        }
+    }
+
+    private final @NotNull int[] tokens;
+    private final @NotNull int[] bounds;
+
+    private WordTokens(@NotNull int[] tokens, @NotNull int[] bounds) {
+        this.tokens = tokens;
+        this.bounds = bounds;
+    }
+
+    /**
+     * Splits the text into words and separators and assigns each distinct one an id.
+     *
+     * @param table ids of the words and separators seen so far, shared by all texts which are going to be compared
+     */
+    static @NotNull WordTokens tokenize(@NotNull String text, @NotNull TokenTable table) {
+        int length = text.length();
+        int lastTagEnd = text.lastIndexOf('>');
+        int[] tokens = new int[16];
+        int[] bounds = new int[17];
+        int count = 0;
+        int wordStart = 0;
+        int i = 0;
+        while (i < length) {
+            int separatorLength = separatorLength(text, i, lastTagEnd);
+            if (separatorLength == 0) {
+                i++;
+                continue;
+            }
+            if (count + 2 >= tokens.length) {
+                tokens = Arrays.copyOf(tokens, tokens.length * 2);
+                bounds = Arrays.copyOf(bounds, tokens.length + 1);
+            }
+            if (wordStart < i) {
+                bounds[count] = wordStart;
+                tokens[count++] = table.intern(text, wordStart, i);
+            }
+            bounds[count] = i;
+            tokens[count++] = table.intern(text, i, i + separatorLength);
+            i += separatorLength;
+            wordStart = i;
+        }
+        if (wordStart < length) {
+            if (count + 1 >= tokens.length) {
+                tokens = Arrays.copyOf(tokens, tokens.length + 1);
+                bounds = Arrays.copyOf(bounds, tokens.length + 1);
+            }
+            bounds[count] = wordStart;
+            tokens[count++] = table.intern(text, wordStart, length);
+        }
+        bounds[count] = length;
+        return new WordTokens(Arrays.copyOf(tokens, count), Arrays.copyOf(bounds, count + 1));
+    }
+
+    static boolean isSeparator(char c) {
+        return c < SEPARATORS.length && SEPARATORS[c];
+    }
+
+    /**
+     * @param lastTagEnd position of the last {@code '>'} in the text, tags can't end after it
+     * @return length of the separator starting at the given position, 0 if there is none
+     */
+    static int separatorLength(@NotNull String text, int index, int lastTagEnd) {
+        char c = text.charAt(index);
+        if (isSeparator(c)) {
+            return 1;
+        }
+        if (c != '<') {
+            return 0;
+        }
+        // <("[^"]*"|'[^']*'|[^'">])*>
+        int i = index + 1;
+        while (i <= lastTagEnd) {
+            char current = text.charAt(i);
+            if (current == '>') {
+                return i + 1 - index;
+            }
+            if (current == '"' || current == '\'') {
+                int closing = text.indexOf(current, i + 1);
+                if (closing == -1) {
+                    return 0;
+                }
+                i = closing + 1;
+            } else {
+                i++;
+            }
+        }
+        return 0;
+    }
+
+    @NotNull
+    int[] getTokens() {
+        return tokens;
+    }
+
+    /**
+     * @return start positions of the tokens followed by the length of the text
+     */
+    @NotNull
+    int[] getBounds() {
+        return bounds;
+    }
+
+}
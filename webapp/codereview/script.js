@@ -1,10 +1,63 @@
 var currentScroll = null;
+var maxLoadingContents = 4;
+var loadingContents = 0;
+var loadTimer = null;
 
 onload = function(){
 	renderNav();
 	$(".cr_file_label").stick_in_parent();
+	$(window).on("scroll resize", scheduleLoad);
+	loadVisibleContents();
 };
 
+function scheduleLoad() {
+	if (loadTimer == null) {
+		loadTimer = setTimeout(function() {
+			loadTimer = null;
+			loadVisibleContents();
+		}, 100);
+	}
+}
+
+function loadVisibleContents() {
+	var top = $(window).scrollTop() - $(window).height();
+	var bottom = $(window).scrollTop() + 2 * $(window).height();
+	$(".cr_lazy_content").each(function() {
+		var offset = $(this).offset().top;
+		if (loadingContents >= maxLoadingContents || offset > bottom) {
+			return false;
+		}
+		if (offset >= top) {
+			loadContent(this);
+		}
+	});
+}
+
+function loadContent(placeholder) {
+	var url = $(placeholder).children("a").attr("href");
+	loadingContents++;
+	$(placeholder).removeClass("cr_lazy_content").addClass("cr_lazy_content_loading");
+	$(placeholder).load(url + " .cr_compare_content", function(response, status, xhr) {
+		loadingContents--;
+		$(placeholder).removeClass("cr_lazy_content_loading");
+		if (xhr.status == 503) {
+			// the server is busy, the file is loaded again later
+			$(placeholder).addClass("cr_lazy_content");
+			var retryAfter = parseInt(xhr.getResponseHeader("Retry-After"), 10) || 10;
+			setTimeout(scheduleLoad, retryAfter * 1000);
+			return;
+		}
+		if (status == "error") {
+			$(placeholder).text("Cannot load the changes.");
+		}
+		$(placeholder).find("pre code").each(function(i, block) {
+			hljs.highlightBlock(block);
+		});
+		$(document.body).trigger("sticky_kit:recalc");
+		loadVisibleContents();
+	});
+}
+
 function renderNav() {
 	var navContainer = document.createElement("div");
 	navContainer.className = "cr_nav_container";